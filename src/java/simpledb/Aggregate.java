@@ -1,7 +1,5 @@
 package simpledb;
 
-import com.sun.deploy.security.SelectableSecurityManager;
-import org.omg.PortableInterceptor.SYSTEM_EXCEPTION;
 
 import java.util.*;
 
@@ -0,0 +1,378 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from a stream of tuples that
+ * is already sorted on the key field.  Only the last two pages of each level
+ * of the tree are kept in memory, so the size of the input is not limited by
+ * the heap.
+ * <p>
+ * Page numbers are handed out as pages are started.  Every page except the
+ * last two of its level is written exactly once, as soon as the page to its
+ * right fills up, so the file is written (almost) sequentially.  When the
+ * input ends, the last two pages of each level are balanced so that no page
+ * but the root is less than half full.  Balancing an internal level may move
+ * children that were already written to another parent; their parent
+ * pointers are then patched in place, which touches at most half a page of
+ * children per level.
+ * <p>
+ * Leaf pages are filled to the given fill factor, and internal pages are
+ * filled completely.  Because of that, the last two pages of a level can only
+ * be merged into one at the leaf level, and the pages that are dropped then
+ * are the last ones started, so the file is simply truncated.
+ * <p>
+ * Internal pages with variable-length keys (see {@link BTreeInternalPage}) are
+ * filled up to one entry with the longest key, so that the separator replaced
+ * when the last two pages of a level below are balanced always fits.
+ */
+class BTreeBulkLoader {
+
+	/** A page that has been started but not yet written out */
+	private static class PageBuffer {
+		final int pageNo;
+		int parent; // 0 for the root, as in BTreePage
+		final ArrayList<Tuple> tuples = new ArrayList<Tuple>(); // leaf pages
+		final ArrayList<Field> keys = new ArrayList<Field>(); // internal pages
+		final ArrayList<Integer> children = new ArrayList<Integer>(); // internal pages
+
+		PageBuffer(int pageNo) {
+			this.pageNo = pageNo;
+		}
+	}
+
+	/** The pages of one level that may still change */
+	private static class Level {
+		PageBuffer pending; // full, waiting for the page to its right to fill up
+		PageBuffer current; // being filled
+	}
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final Type[] typeAr;
+	private final int pageSize = BufferPool.getPageSize();
+	private final int leafFill;
+	private final int minTuples;
+	private final int maxEntries;
+	private final int minEntries;
+	private final boolean varKeys;
+
+	// levels.get(0) holds the leaves, the last level holds the root
+	private final ArrayList<Level> levels = new ArrayList<Level>();
+	private int nextPageNo = 1;
+	private int lastWrittenLeaf = 0;
+	private Field lastKey = null;
+	private RandomAccessFile out;
+
+	/**
+	 * @param bf - the BTreeFile whose file is overwritten
+	 * @param fillFactor - the fraction of each leaf page to fill, at least 0.5
+	 *        (smaller values are rounded up to keep leaves half full) and at most 1
+	 */
+	BTreeBulkLoader(BTreeFile bf, double fillFactor) {
+		if (!(fillFactor > 0 && fillFactor <= 1))
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyFields = bf.keyFields();
+		this.typeAr = new Type[td.numFields()];
+		for (int i = 0; i < typeAr.length; i++)
+			typeAr[i] = td.getFieldType(i);
+
+		// same layouts as BTreeLeafPage.getMaxTuples() and BTreeInternalPage.getMaxEntries()
+		int maxTuples = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+		int nentrybytes = CompositeField.getLen(td, keyFields) + BTreePage.INDEX_SIZE;
+		this.varKeys = BTreeInternalPage.hasVarKeys(td, keyFields);
+		this.maxEntries = varKeys ? BTreeInternalPage.getMaxVarEntries(pageSize)
+				: (pageSize * 8 - (2 * BTreePage.INDEX_SIZE + 1) * 8 - 1) / (nentrybytes * 8 + 1);
+		this.minTuples = maxTuples / 2;
+		this.minEntries = maxEntries / 2;
+		this.leafFill = Math.max(Math.max(minTuples, 1), Math.min(maxTuples, (int) (fillFactor * maxTuples)));
+	}
+
+	/**
+	 * Build the B+ tree from the sorted tuples of the given iterator, which
+	 * is opened and closed here.
+	 * @throws DbException if the tuples do not match the file or are not sorted
+	 */
+	void load(OpIterator sorted) throws DbException, IOException, TransactionAbortedException {
+		if (!sorted.getTupleDesc().equals(td))
+			throw new DbException("tuple desc mismatch in bulk load");
+		out = new RandomAccessFile(bf.getFile(), "rw");
+		try {
+			out.setLength(0);
+			sorted.open();
+			try {
+				while (sorted.hasNext())
+					add(sorted.next());
+			} finally {
+				sorted.close();
+			}
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private PageBuffer newPage() {
+		return new PageBuffer(nextPageNo++);
+	}
+
+	private long offset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * pageSize;
+	}
+
+	private void add(Tuple t) throws DbException, IOException {
+		Field key = bf.getKey(t);
+		if (lastKey != null && key.compare(Op.LESS_THAN, lastKey))
+			throw new DbException("bulk load input is not sorted on " + Arrays.toString(keyFields));
+		lastKey = key;
+
+		if (levels.isEmpty()) {
+			Level leaves = new Level();
+			leaves.current = newPage();
+			levels.add(leaves);
+		}
+		Level leaves = levels.get(0);
+		if (leaves.current.tuples.size() == leafFill) {
+			// start the next leaf before its parents, so that the pages started
+			// for the last leaf always come last in the file
+			PageBuffer next = newPage();
+			ArrayList<Tuple> last = leaves.current.tuples;
+			pushEntry(1, BTreeFile.separator(bf.getKey(last.get(last.size() - 1)), key), leaves.current, next);
+			if (leaves.pending != null)
+				writeLeaf(leaves.pending, leaves.current.pageNo);
+			leaves.pending = leaves.current;
+			leaves.current = next;
+		}
+		leaves.current.tuples.add(t);
+	}
+
+	/**
+	 * Add the entry (key, left, right) to the given level, where left is the
+	 * last child added to that level, starting a new page or a new root as
+	 * needed.
+	 */
+	private void pushEntry(int level, Field key, PageBuffer left, PageBuffer right)
+			throws DbException, IOException {
+		if (levels.size() == level) {
+			Level root = new Level();
+			root.current = newPage();
+			root.current.children.add(left.pageNo);
+			left.parent = root.current.pageNo;
+			levels.add(root);
+		}
+		Level lvl = levels.get(level);
+		PageBuffer cur = lvl.current;
+		if (emptySlots(cur.keys) <= (varKeys ? 1 : 0)) {
+			// push the key up and start the next page with right as its first child
+			PageBuffer next = newPage();
+			next.children.add(right.pageNo);
+			right.parent = next.pageNo;
+			pushEntry(level + 1, key, cur, next);
+			if (lvl.pending != null)
+				writeInternal(lvl.pending, level);
+			lvl.pending = cur;
+			lvl.current = next;
+		}
+		else {
+			cur.keys.add(key);
+			cur.children.add(right.pageNo);
+			right.parent = cur.pageNo;
+		}
+	}
+
+	/**
+	 * @return the number of empty slots of an internal page with the given keys,
+	 *         as counted by BTreeInternalPage.getNumEmptySlots()
+	 */
+	private int emptySlots(List<Field> keys) {
+		if (!varKeys)
+			return maxEntries - keys.size();
+		int bytes = 0;
+		for (Field key : keys)
+			bytes += BTreeInternalPage.getVarKeySize(key);
+		return BTreeInternalPage.getVarEmptySlots(pageSize, keys.size(), bytes);
+	}
+
+	/**
+	 * Balance the last two pages of every level, write out all the pages
+	 * still in memory and the root pointer.
+	 */
+	private void finish() throws DbException, IOException {
+		if (levels.isEmpty()) {
+			Level leaves = new Level();
+			leaves.current = newPage();
+			levels.add(leaves);
+		}
+		// the root level never has a pending page
+		for (int level = 0; level < levels.size() - 1; level++)
+			balance(level);
+		// dropping the last leaf may leave the root with a single child
+		while (levels.size() > 1 && levels.get(levels.size() - 1).current.keys.isEmpty()) {
+			levels.remove(levels.size() - 1);
+			levels.get(levels.size() - 1).current.parent = 0;
+		}
+
+		for (int level = 0; level < levels.size(); level++) {
+			Level lvl = levels.get(level);
+			if (level == 0) {
+				if (lvl.pending != null)
+					writeLeaf(lvl.pending, lvl.current.pageNo);
+				writeLeaf(lvl.current, 0);
+			}
+			else {
+				if (lvl.pending != null)
+					writeInternal(lvl.pending, level);
+				writeInternal(lvl.current, level);
+			}
+		}
+
+		int root = levels.get(levels.size() - 1).current.pageNo;
+		int rootCategory = levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF;
+		out.seek(0);
+		out.write(BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0));
+		out.setLength(offset(nextPageNo));
+	}
+
+	/**
+	 * @return the level whose current page holds, as its last key, the key
+	 *         separating the pending and current pages of the given level
+	 */
+	private int separatorLevel(int level) {
+		int k = level + 1;
+		while (levels.get(k).current.keys.isEmpty())
+			k++;
+		return k;
+	}
+
+	/**
+	 * Make sure the current page of a level is at least half full, by moving
+	 * entries from the pending page or, for leaves, by merging the two pages.
+	 */
+	private void balance(int level) throws IOException {
+		Level lvl = levels.get(level);
+		PageBuffer left = lvl.pending;
+		PageBuffer right = lvl.current;
+		if (left == null)
+			return;
+		ArrayList<Field> sepKeys = levels.get(separatorLevel(level)).current.keys;
+
+		if (level == 0) {
+			int n = right.tuples.size();
+			if (n >= minTuples)
+				return;
+			if (left.tuples.size() + n < 2 * minTuples) {
+				// the two leaves fit in one page: drop the right one, which
+				// together with the parents started for it is at the end of the file
+				left.tuples.addAll(right.tuples);
+				removeCurrent(level);
+				nextPageNo = right.pageNo;
+				return;
+			}
+			List<Tuple> moved = left.tuples.subList(left.tuples.size() - (minTuples - n), left.tuples.size());
+			right.tuples.addAll(0, moved);
+			moved.clear();
+			sepKeys.set(sepKeys.size() - 1, BTreeFile.separator(bf.getKey(left.tuples.get(left.tuples.size() - 1)),
+					bf.getKey(right.tuples.get(0))));
+			return;
+		}
+
+		int maxEmptySlots = maxEntries - minEntries;
+		if (emptySlots(right.keys) <= maxEmptySlots)
+			return;
+		// rotate entries through the separator; the left page is full, so
+		// both pages end up at least half full
+		ArrayList<Field> keys = new ArrayList<Field>(left.keys);
+		keys.add(sepKeys.get(sepKeys.size() - 1));
+		keys.addAll(right.keys);
+		ArrayList<Integer> children = new ArrayList<Integer>(left.children);
+		children.addAll(right.children);
+		int split = keys.size() - minEntries - 1;
+		if (varKeys) {
+			// move entries until the right page is half full
+			split = keys.size() - 1;
+			while (split > 0 && emptySlots(keys.subList(split + 1, keys.size())) > maxEmptySlots)
+				split--;
+		}
+
+		for (int i = split + 1; i < left.children.size(); i++)
+			setParent(level - 1, children.get(i), right.pageNo);
+		left.keys.clear();
+		left.keys.addAll(keys.subList(0, split));
+		left.children.clear();
+		left.children.addAll(children.subList(0, split + 1));
+		sepKeys.set(sepKeys.size() - 1, keys.get(split));
+		right.keys.clear();
+		right.keys.addAll(keys.subList(split + 1, keys.size()));
+		right.children.clear();
+		right.children.addAll(children.subList(split + 1, children.size()));
+	}
+
+	/**
+	 * Drop the current page of a level, and its entry from the level above.
+	 * The pending page becomes the current one.
+	 */
+	private void removeCurrent(int level) {
+		Level lvl = levels.get(level);
+		Level up = levels.get(level + 1);
+		if (up.current.keys.isEmpty()) {
+			// the page was the only child of a page started for it
+			removeCurrent(level + 1);
+		}
+		else {
+			up.current.keys.remove(up.current.keys.size() - 1);
+			up.current.children.remove(up.current.children.size() - 1);
+		}
+		lvl.current = lvl.pending;
+		lvl.pending = null;
+	}
+
+	/**
+	 * Set the parent pointer of a child page, in memory if it has not been
+	 * written yet and in place in the file otherwise.
+	 */
+	private void setParent(int level, int pageNo, int parent) throws IOException {
+		Level lvl = levels.get(level);
+		if (lvl.pending != null && lvl.pending.pageNo == pageNo)
+			lvl.pending.parent = parent;
+		else if (lvl.current.pageNo == pageNo)
+			lvl.current.parent = parent;
+		else {
+			// the parent pointer is the first int of both leaf and internal pages
+			out.seek(offset(pageNo));
+			out.writeInt(parent);
+		}
+	}
+
+	private void writeLeaf(PageBuffer page, int rightSibling) throws IOException {
+		byte[] data = BTreeFileEncoder.convertToLeafPage(page.tuples, pageSize,
+				typeAr.length, typeAr, keyFields);
+		// a leaf page starts with its parent, left sibling and right sibling pointers
+		ByteBuffer.wrap(data).putInt(page.parent).putInt(lastWrittenLeaf).putInt(rightSibling);
+		lastWrittenLeaf = page.pageNo;
+		out.seek(offset(page.pageNo));
+		out.write(data);
+	}
+
+	private void writeInternal(PageBuffer page, int level) throws IOException {
+		int tableid = bf.getId();
+		int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		for (int i = 0; i < page.keys.size(); i++)
+			entries.add(new BTreeEntry(page.keys.get(i),
+					new BTreePageId(tableid, page.children.get(i), childCategory),
+					new BTreePageId(tableid, page.children.get(i + 1), childCategory)));
+		byte[] data = varKeys ? BTreeFileEncoder.convertToVarInternalPage(entries, pageSize, childCategory)
+				: BTreeFileEncoder.convertToInternalPage(entries, pageSize, CompositeField.getLen(td, keyFields), childCategory);
+		// an internal page starts with its parent pointer
+		ByteBuffer.wrap(data).putInt(page.parent);
+		out.seek(offset(page.pageNo));
+		out.write(data);
+	}
+}
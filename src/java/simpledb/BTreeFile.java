@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +26,25 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int[] keyFields;
+
+	/** The split fill factor of new BTreeFiles: leaves are always split in half */
+	public static final double DEFAULT_SPLIT_FILL_FACTOR = 0.5;
+
+	private volatile double splitFillFactor = DEFAULT_SPLIT_FILL_FACTOR;
+
+	/** The number of levels below the root pointer which new BTreeFiles keep in memory */
+	public static final int DEFAULT_CACHED_LEVELS = 2;
+
+	private volatile int cachedLevels = DEFAULT_CACHED_LEVELS;
+
+	// copies of the root id and of the internal pages of the top levels, which are only ever
+	// filled while the page is read locked and are dropped as soon as any internal or root
+	// pointer page is locked for writing
+	private volatile BTreePageId cachedRootId;
+	private final Map<BTreePageId, BTreeInternalPage> cachedPages =
+			new ConcurrentHashMap<BTreePageId, BTreeInternalPage>();
+	private final AtomicLong structureVersion = new AtomicLong();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,9 +55,27 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, which are compared
+	 * lexicographically in the given order. The keys of such a file are
+	 * CompositeFields.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @see CompositeField
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if (keys.length == 0)
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyField = keys[0];
 		this.td = td;
 	}
 
@@ -113,11 +152,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -169,95 +208,223 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Set the fraction of a full leaf page which is kept on the left when the
+	 * right-most leaf is split by an insert past its last key. Inserts with
+	 * increasing keys (timestamps, sequences) only ever split the right-most
+	 * leaf, so with a fill factor of 1 they leave every other leaf full instead
+	 * of half empty. All other splits still divide the page in half, and the
+	 * right-most leaf may be left less than half full.
+	 * @param fillFactor - between 0.5 (always split in half) and 1 (move nothing
+	 *        to the new page)
+	 */
+	public void setSplitFillFactor(double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1)
+			throw new IllegalArgumentException("split fill factor must be in [0.5, 1]: " + fillFactor);
+		this.splitFillFactor = fillFactor;
+	}
+
+	public double getSplitFillFactor() {
+		return splitFillFactor;
+	}
+
+	/**
+	 * Set the number of levels of the tree, starting at the root, whose internal pages are kept
+	 * in memory. Searches walk these levels without locking them or the root pointer page and
+	 * only lock the pages below, so a point lookup in a tree of up to cachedLevels + 1 levels
+	 * only goes to the buffer pool for its leaf. The cached pages are dropped whenever an
+	 * internal page or the root pointer page is locked for writing, e.g. to split or merge.
+	 * @param cachedLevels - the number of levels to cache, 0 to disable caching
+	 */
+	public void setCachedLevels(int cachedLevels) {
+		if (cachedLevels < 0)
+			throw new IllegalArgumentException("cached levels must not be negative: " + cachedLevels);
+		this.cachedLevels = cachedLevels;
+		invalidateCachedLevels();
+	}
+
+	public int getCachedLevels() {
+		return cachedLevels;
+	}
+
+	/**
+	 * Returns whether the root id or a copy of the given internal page is cached
+	 */
+	boolean isCached(BTreePageId pid) {
+		if (pid.pgcateg() == BTreePageId.ROOT_PTR)
+			return cachedRootId != null;
+		return cachedPages.containsKey(pid);
+	}
+
+	/**
+	 * Drop all cached pages. The cache is cleared before the version is bumped, so that a
+	 * search which read the new version cannot find a page cached before the change.
+	 */
+	private void invalidateCachedLevels() {
+		cachedRootId = null;
+		cachedPages.clear();
+		structureVersion.incrementAndGet();
+	}
+
+	/**
+	 * Cache a copy of an internal page at the given depth below the root. Must only be called
+	 * for a page the transaction did not hold a lock on before reading it. The copy is only made
+	 * if the transaction now holds a read lock on the page, so that it is committed data and no
+	 * writer can change the page before it invalidates the cache. Read-only and optimistic
+	 * transactions read without locks and may see a before image of a page that is being
+	 * changed, so their reads are never cached.
+	 */
+	private void cachePage(TransactionId tid, BTreeInternalPage page, int depth) throws DbException {
+		if (depth < 0 || depth >= cachedLevels || !Database.getBufferPool().holdsLock(tid, page.getId()))
+			return;
+		try {
+			cachedPages.put(page.getId(), new BTreeInternalPage(page.getId(), page.getPageData(), keyFields));
+		} catch (IOException e) {
+			throw new DbException("unable to cache internal page " + page.getId().getPageNumber() + ": " + e);
+		}
+	}
+
+	/**
+	 * Find and lock the leaf page for the key field f by walking the cached levels of the tree
+	 * without locks, continuing with locks below them. The structure version is checked
+	 * again once the leaf is locked: if an internal page or the root pointer was locked for writing
+	 * in the meantime, the path may be stale, so the leaf is unlocked again.
+	 * 
+	 * @return the leaf page, or null if the root is not cached or the tree changed during the search
+	 */
+	private BTreeLeafPage findCachedLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
+			Field f, boolean reverse) throws DbException, TransactionAbortedException {
+		long version = structureVersion.get();
+		BTreePageId cur_pid = cachedRootId;
+		if(cur_pid == null)
+			return null;
+		int depth = 0;
+		BTreeInternalPage cur_page;
+		while(cur_pid.pgcateg() != BTreePageId.LEAF && (cur_page = cachedPages.get(cur_pid)) != null) {
+			cur_pid = reverse ? cur_page.findChildReverse(f) : cur_page.findChild(f);
+			if(cur_pid == null)
+				return null;
+			depth++;
+		}
+		boolean held = Database.getBufferPool().holdsLock(tid, cur_pid);
+		BTreeLeafPage leafPage;
+		try {
+			leafPage = reverse ? findLeafPageReverse(tid, dirtypages, cur_pid, depth, perm, f)
+					: findLeafPage(tid, dirtypages, cur_pid, depth, perm, f);
+		} catch (DbException e) {
+			// a stale path may lead to a page which has been freed since
+			if(structureVersion.get() != version)
+				return null;
+			throw e;
+		}
+		if(structureVersion.get() == version)
+			return leafPage;
+		if(!held) {
+			dirtypages.remove(leafPage.getId());
+			Database.getBufferPool().releasePage(tid, leafPage.getId());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the index of the field that this B+ tree is keyed on, or of the
+	 * leading key field if it is keyed on several
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree: its key field, or a
+	 * CompositeField of its key fields
+	 */
+	public Field getKey(Tuple t) {
+		return CompositeField.getKey(t, keyFields);
+	}
+
+	/**
+	 * The key to store in an internal page to separate two adjacent children whose
+	 * keys are at most left and at least right. STRING keys are truncated to the
+	 * shortest prefix of right that is greater than left, so that the internal pages
+	 * of a STRING-keyed tree, which store keys with variable length, hold many more
+	 * entries. Other keys are returned as they are.
+	 * 
+	 * @param left - the largest key of the left child, or null if not known
+	 * @param right - the smallest key of the right child
+	 */
+	static Field separator(Field left, Field right) {
+		if(left == null || !(right instanceof StringField) || !left.compare(Op.LESS_THAN, right))
+			return right;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		// right is greater, so it differs from left within the length of left or extends it
+		int n = 0;
+		while(n < l.length() && l.charAt(n) == r.charAt(n))
+			n++;
+		return new StringField(r.substring(0, n + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * the left-most page possibly containing the key field f. It locks any internal nodes it
+	 * searches with READ_ONLY permission, and locks the leaf node with permission perm.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the current page being searched
+	 * @param depth - the depth of pid below the root, used to cache the top levels, or -1 if unknown
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f) 
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, int depth,
+			Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
 		BTreePageId cur_pid=pid;
 		while(cur_pid.pgcateg()!=BTreePageId.LEAF){
+			boolean cur_held=Database.getBufferPool().holdsLock(tid,cur_pid);
 			BTreeInternalPage cur_page=(BTreeInternalPage) getPage(tid,dirtypages,cur_pid,Permissions.READ_ONLY);
-			Iterator<BTreeEntry> cur_iterator=cur_page.iterator();
-			BTreeEntry cur_entry=null;
-			boolean flag=false;
-			while(cur_iterator.hasNext()){
-				cur_entry=cur_iterator.next();
-				if(f==null){
-					cur_pid=cur_entry.getLeftChild();
-					flag=true;
-					break;
-				}else {
-					Field cur_field = cur_entry.getKey();
-					if (f.compare(Op.LESS_THAN_OR_EQ, cur_field)) {
-						cur_pid = cur_entry.getLeftChild();
-						flag = true;
-						break;
-					}
-				}
-			}
-			if(!flag){
-				cur_pid=cur_entry.getRightChild();
-			}
+			if(!cur_held && depth>=0)
+				cachePage(tid,cur_page,depth);
+			if(depth>=0)
+				depth++;
+			cur_pid=cur_page.findChild(f);
+			if(cur_pid==null)
+				throw new DbException("internal page " + cur_page.getId().getPageNumber() + " has no entries");
 		}
-		BTreeLeafPage leafPage=(BTreeLeafPage)getPage(tid,dirtypages,cur_pid,perm);
-		return leafPage;
+		return (BTreeLeafPage)getPage(tid,dirtypages,cur_pid,perm);
 	}
-	private BTreeLeafPage findLeafPageReverse(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-									   Field f)
+	private BTreeLeafPage findLeafPageReverse(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, int depth,
+									   Permissions perm, Field f)
 			throws DbException, TransactionAbortedException {
 		BTreePageId cur_pid=pid;
 		while(cur_pid.pgcateg()!=BTreePageId.LEAF){
+			boolean cur_held=Database.getBufferPool().holdsLock(tid,cur_pid);
 			BTreeInternalPage cur_page=(BTreeInternalPage) getPage(tid,dirtypages,cur_pid,Permissions.READ_ONLY);
-			Iterator<BTreeEntry> cur_iterator=cur_page.reverseIterator();
-			BTreeEntry cur_entry=null;
-			boolean flag=false;
-			while(cur_iterator.hasNext()){
-				cur_entry=cur_iterator.next();
-				if(f==null){
-					cur_pid=cur_entry.getRightChild();
-					flag=true;
-					break;
-				}else {
-					Field cur_field = cur_entry.getKey();
-					if (f.compare(Op.GREATER_THAN_OR_EQ, cur_field)) {
-						cur_pid = cur_entry.getRightChild();
-						flag = true;
-						break;
-					}
-				}
-			}
-			if(!flag){
-				cur_pid=cur_entry.getLeftChild();
-			}
+			if(!cur_held && depth>=0)
+				cachePage(tid,cur_page,depth);
+			if(depth>=0)
+				depth++;
+			cur_pid=cur_page.findChildReverse(f);
+			if(cur_pid==null)
+				throw new DbException("internal page " + cur_page.getId().getPageNumber() + " has no entries");
 		}
-		BTreeLeafPage leafPage=(BTreeLeafPage)getPage(tid,dirtypages,cur_pid,perm);
-		return leafPage;
+		return (BTreeLeafPage)getPage(tid,dirtypages,cur_pid,perm);
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, int, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
 	 * @param pid - the current page being searched
@@ -269,12 +436,63 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, -1, perm, f);
 	}
 	BTreeLeafPage findLeafPageReverse(TransactionId tid, BTreePageId pid, Permissions perm,
 							   Field f)
 			throws DbException, TransactionAbortedException {
-		return findLeafPageReverse(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPageReverse(tid, new HashMap<PageId, Page>(), pid, -1, perm, f);
+	}
+
+	/**
+	 * Convenience method to find a leaf page starting from the root of the tree. The root pointer
+	 * page and the internal pages on the path are not locked at all if they are cached.
+	 * @see #setCachedLevels(int)
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, int, Permissions, Field)
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 * 
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage leafPage = findCachedLeafPage(tid, dirtypages, perm, f, false);
+		if(leafPage != null)
+			return leafPage;
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		cacheRootId(tid, rootPtr, rootPtrHeld);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), 0, perm, f);
+	}
+
+	/**
+	 * Reverse counterpart of {@link #findLeafPage(TransactionId, Permissions, Field)}: finds the
+	 * right-most leaf page possibly containing the key field f, starting from the root.
+	 */
+	BTreeLeafPage findLeafPageReverse(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage leafPage = findCachedLeafPage(tid, dirtypages, perm, f, true);
+		if(leafPage != null)
+			return leafPage;
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		cacheRootId(tid, rootPtr, rootPtrHeld);
+		return findLeafPageReverse(tid, dirtypages, rootPtr.getRootId(), 0, perm, f);
+	}
+
+	/**
+	 * Cache the root id read from the root pointer page, under the same conditions as
+	 * {@link #cachePage(TransactionId, BTreeInternalPage, int)}
+	 */
+	private void cacheRootId(TransactionId tid, BTreeRootPtrPage rootPtr, boolean heldBefore) {
+		if(!heldBefore && cachedLevels > 0 && Database.getBufferPool().holdsLock(tid, rootPtr.getId()))
+			cachedRootId = rootPtr.getRootId();
 	}
 
 	/**
@@ -308,10 +526,15 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        BTreeLeafPage right_leafPage=(BTreeLeafPage) getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
+        // keep more than half on the left when appending past the end of the right-most leaf
+        int keep=page.getNumTuples()/2;
+        if(splitFillFactor>DEFAULT_SPLIT_FILL_FACTOR && page.getRightSiblingId()==null
+        		&& field.compare(Op.GREATER_THAN_OR_EQ,getKey(page.reverseIterator().next())))
+        	keep=Math.max(keep,(int)(splitFillFactor*page.getNumTuples()));
         Iterator<Tuple> iterator=page.iterator();
-        int midpoint=page.getNumTuples()/2+1;
+        int midpoint=keep+1;
         Field key=null;
+        Field prevKey=null;
         int count=0;
         boolean insertIntoRight=false;
         ArrayList<Tuple>rebundancyTuples=new ArrayList<>();
@@ -319,28 +542,38 @@ public class BTreeFile implements DbFile {
         	Tuple t=iterator.next();
         	count++;
         	if(count==midpoint){
-        		key=t.getField(keyField);
+        		key=separator(prevKey,getKey(t));
         		if(field.compare(Op.GREATER_THAN,key))
         			insertIntoRight=true;
 			}
         	if(count>=midpoint){
         		rebundancyTuples.add(t);
 			}
+        	prevKey=getKey(t);
 		}
+		if(key==null){
+			// nothing moves: the new tuple starts the right page
+			key=separator(prevKey,field);
+			insertIntoRight=true;
+		}
+		// lock every page the split changes before changing any of them, so that an abort
+		// while waiting for a lock leaves this level of the tree as it was
+		BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),key);
+		BTreeLeafPage oldRightLeafPage=null;
+		if(page.getRightSiblingId()!=null)
+			oldRightLeafPage=(BTreeLeafPage) getPage(tid,dirtypages,page.getRightSiblingId(),Permissions.READ_WRITE);
+		BTreeLeafPage right_leafPage=(BTreeLeafPage) getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
 		for (int i = 0; i < rebundancyTuples.size() ; i++) {
 		//for(int i=rebundancyTuples.size()-1;i>=0;i--){
 			page.deleteTuple(rebundancyTuples.get(i));
 			right_leafPage.insertTuple(rebundancyTuples.get(i));
 		}
-		BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),key);
 		BTreeEntry new_entry=new BTreeEntry(key,page.getId(),right_leafPage.getId());
 		parentPage.insertEntry(new_entry);
 		right_leafPage.setParentId(parentPage.getId());
 		//page.setParentId(parentPage.getId());
 		right_leafPage.setRightSiblingId(page.getRightSiblingId());
-		if(page.getRightSiblingId()!=null){
-			BTreeLeafPage oldRightLeafPage=(BTreeLeafPage) getPage
-					(tid,dirtypages,page.getRightSiblingId(),Permissions.READ_WRITE);
+		if(oldRightLeafPage!=null){
 			oldRightLeafPage.setLeftSiblingId(right_leafPage.getId());
 			dirtypages.put(oldRightLeafPage.getId(),oldRightLeafPage);
 		}
@@ -385,9 +618,8 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		BTreeInternalPage right_internalPage=(BTreeInternalPage) getEmptyPage(tid,dirtypages,BTreePageId.INTERNAL);
 		Iterator<BTreeEntry> iterator=page.iterator();
-		int midpoint=page.getNumEntries()/2+1;
+		int midpoint=page.getSplitPoint();
 		Field key=null;
 		int count=0;
 		boolean insertIntoRight=false;
@@ -404,13 +636,18 @@ public class BTreeFile implements DbFile {
 				rebundancyEntries.add(t);
 			}
 		}
+		// lock the parent and the children moving to the new page before changing anything,
+		// so that an abort while waiting for a lock leaves this level of the tree as it was
+		BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),key);
+		for (BTreeEntry e : rebundancyEntries)
+			getPage(tid,dirtypages,e.getRightChild(),Permissions.READ_WRITE);
+		BTreeInternalPage right_internalPage=(BTreeInternalPage) getEmptyPage(tid,dirtypages,BTreePageId.INTERNAL);
     	for (int i = 0; i < rebundancyEntries.size() ; i++) {
 		//for(int i=rebundancyEntries.size()-1;i>=0;i--){
 			page.deleteKeyAndRightChild(rebundancyEntries.get(i));
 			if(i!=0)
 				right_internalPage.insertEntry(rebundancyEntries.get(i));
 		}
-		BTreeInternalPage parentPage=getParentWithEmptySlots(tid,dirtypages,page.getParentId(),key);
 		BTreeEntry new_entry=new BTreeEntry(key,page.getId(),right_internalPage.getId());
 		parentPage.insertEntry(new_entry);
 		right_internalPage.setParentId(parentPage.getId());
@@ -553,6 +790,9 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				// the page is locked now, so nobody can cache it again before we are done
+				if(pid.pgcateg() == BTreePageId.INTERNAL || pid.pgcateg() == BTreePageId.ROOT_PTR)
+					invalidateCachedLevels();
 			}
 			return p;
 		}
@@ -571,28 +811,56 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		try {
+			insertTuple(tid, dirtypages, t);
 		}
+		finally {
+			markDirty(tid, dirtypages);
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	private void insertTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findCachedLeafPage(tid, dirtypages, Permissions.READ_WRITE, getKey(t), false);
+		if(leafPage == null) {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			boolean rootPtrHeld = Database.getBufferPool().holdsLock(tid, rootPtrId);
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
+			else {
+				cacheRootId(tid, rootPtr, rootPtrHeld);
+			}
+			leafPage = findLeafPage(tid, dirtypages, rootId, 0, Permissions.READ_WRITE, getKey(t));
+		}
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	}
+
+	/**
+	 * Mark every page an insert or delete locked with read-write permission as dirtied by the
+	 * transaction. This is done even if the operation fails part way, e.g. because it is aborted
+	 * while waiting for a lock, so that the buffer pool discards the pages it already changed.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages locked with read-write permission by the operation
+	 */
+	private static void markDirty(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values())
+			p.markDirty(true, tid);
 	}
 	
 	/**
@@ -692,6 +960,11 @@ public class BTreeFile implements DbFile {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
+
+		// the separator set by stealFromLeafPage may be longer than the old one
+		if(parent != null && parent.isOverfull()) {
+			splitInternalPage(tid, dirtypages, parent, parent.reverseIterator().next().getKey());
+		}
 	}
 	
 	/**
@@ -730,7 +1003,9 @@ public class BTreeFile implements DbFile {
             sibling.deleteTuple(sharedTuple);
             page.insertTuple(sharedTuple);
         }
-        entry.setKey(now_rightPage.iterator().next().getField(keyField));
+        BTreeLeafPage now_leftPage=isRightSibling?page:sibling;
+        entry.setKey(separator(getKey(now_leftPage.reverseIterator().next()),
+        		getKey(now_rightPage.iterator().next())));
         parent.updateEntry(entry);
 
 	}
@@ -813,25 +1088,21 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 
-        Iterator<BTreeEntry> iterator=leftSibling.reverseIterator();
-        int numToShare=(leftSibling.getNumEntries()-page.getNumEntries())/2;
-        BTreeEntry[] sharedEntries=new BTreeEntry[numToShare];
-        int count=0;
-        while(count<numToShare&&iterator.hasNext()){
-            sharedEntries[count++]=iterator.next();
-        }
-        for(BTreeEntry sharedEntry:sharedEntries) {
+        // count in empty slots rather than entries, which differ for variable-length keys
+        Field parentKey=parentEntry.getKey();
+        while(page.getNumEmptySlots()-leftSibling.getNumEmptySlots()>=2) {
+            BTreeEntry sharedEntry=leftSibling.reverseIterator().next();
             leftSibling.deleteKeyAndRightChild(sharedEntry);
             Field shared_key = sharedEntry.getKey();
-            sharedEntry.setKey(parentEntry.getKey());
-            parentEntry.setKey(shared_key);
-            parent.updateEntry(parentEntry);
+            sharedEntry.setKey(parentKey);
+            parentKey=shared_key;
             sharedEntry.setLeftChild(sharedEntry.getRightChild());
             sharedEntry.setRightChild(page.iterator().next().getLeftChild());
             page.insertEntry(sharedEntry);
             updateParentPointer(tid, dirtypages, page.getId(), sharedEntry.getLeftChild());
         }
         dirtypages.put(parent.getId(),parent);
+        updateParentKey(tid, dirtypages, parent, parentEntry, parentKey);
         dirtypages.put(page.getId(),page);
         dirtypages.put(leftSibling.getId(),leftSibling);
 	}
@@ -861,28 +1132,50 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-        Iterator<BTreeEntry> iterator=rightSibling.iterator();
-        int numToShare=(rightSibling.getNumEntries()-page.getNumEntries())/2;
-        BTreeEntry[] sharedEntries=new BTreeEntry[numToShare];
-        int count=0;
-        while(count<numToShare&&iterator.hasNext()){
-            sharedEntries[count++]=iterator.next();
-        }
-        for(BTreeEntry sharedEntry:sharedEntries) {
+        // count in empty slots rather than entries, which differ for variable-length keys
+        Field parentKey=parentEntry.getKey();
+        while(page.getNumEmptySlots()-rightSibling.getNumEmptySlots()>=2) {
+            BTreeEntry sharedEntry=rightSibling.iterator().next();
             rightSibling.deleteKeyAndLeftChild(sharedEntry);
             Field shared_key = sharedEntry.getKey();
-            sharedEntry.setKey(parentEntry.getKey());
-            parentEntry.setKey(shared_key);
-            parent.updateEntry(parentEntry);
+            sharedEntry.setKey(parentKey);
+            parentKey=shared_key;
             sharedEntry.setRightChild(sharedEntry.getLeftChild());
             sharedEntry.setLeftChild(page.reverseIterator().next().getRightChild());
             page.insertEntry(sharedEntry);
             updateParentPointer(tid, dirtypages, page.getId(), sharedEntry.getRightChild());
         }
         dirtypages.put(parent.getId(),parent);
+        updateParentKey(tid, dirtypages, parent, parentEntry, parentKey);
         dirtypages.put(page.getId(),page);
         dirtypages.put(rightSibling.getId(),rightSibling);
 	}
+
+	/**
+	 * Set the key of an entry in an internal page, and split the page if the new key no
+	 * longer fits. This can only happen with variable-length keys, when a longer key
+	 * replaces a shorter one in a page which is already full.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page holding the entry
+	 * @param entry - the entry to update
+	 * @param key - the new key of the entry
+	 * @see BTreeInternalPage#updateEntry(BTreeEntry)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void updateParentKey(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			BTreeInternalPage page, BTreeEntry entry, Field key) 
+					throws DbException, IOException, TransactionAbortedException {
+		entry.setKey(key);
+		page.updateEntry(entry);
+		if(page.isOverfull()) {
+			splitInternalPage(tid, dirtypages, page, key);
+		}
+	}
 	
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page. 
@@ -1031,7 +1324,17 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			deleteTuple(tid, dirtypages, t);
+		}
+		finally {
+			markDirty(tid, dirtypages);
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
 
+	private void deleteTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -1043,10 +1346,6 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 
 	/**
@@ -1276,6 +1575,21 @@ public class BTreeFile implements DbFile {
 		return new BTreeReverseSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples whose key is equal to any of the given keys, as for an IN
+	 * list, in key order. The keys are sorted and resolved in one left-to-right
+	 * pass over the leaves: the tree is only searched from the root for a key
+	 * which is past the leaf of the previous key, so keys falling on the same
+	 * leaf cost a single search.
+	 * 
+	 * @param tid - the transaction id
+	 * @param keys - the keys to look up, in any order and possibly repeated
+	 * @return an iterator for the tuples with one of the keys
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, Collection<Field> keys) {
+		return new BTreeMultiSearchIterator(this, tid, keys);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1318,10 +1632,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1385,6 +1696,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	Field prefix;
 
 	/**
 	 * Constructor for this iterator
@@ -1403,17 +1715,21 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		prefix = ipred.getPrefix();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			it = curp.iterator(ipred.getField());
+		}
+		else if(prefix != null) {
+			// a range on the last field of a composite key starts at the equal leading fields
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, prefix);
+			it = curp.iterator(prefix);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1429,7 +1745,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (prefix != null && f.getKey(t).compare(Op.GREATER_THAN, prefix)) {
+					// past the keys with the leading fields of the predicate
+					return null;
+				}
+				if (ipred.getUpperField() != null && !f.getKey(t).compare(ipred.getUpperOp(), ipred.getUpperField())) {
+					// past the upper bound of the range
+					return null;
+				}
+				if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1438,7 +1762,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.getKey(t).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1498,10 +1822,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPageReverse(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPageReverse(tid, Permissions.READ_ONLY, null);
 		it = curp.reverseIterator();
 	}
 
@@ -1553,6 +1874,128 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 	}
 }
 
+/**
+ * Helper class that implements the DbFileIterator for a batch of equality
+ * searches on a B+ Tree File
+ */
+class BTreeMultiSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	Collection<Field> keys;
+	ArrayList<Field> sortedKeys;
+	int nextKey;
+	Field key;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param keys - the keys to search for
+	 */
+	public BTreeMultiSearchIterator(BTreeFile f, TransactionId tid, Collection<Field> keys) {
+		this.f = f;
+		this.tid = tid;
+		this.keys = keys;
+	}
+
+	/**
+	 * Open this iterator by sorting the keys and dropping repeated ones
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		ArrayList<Field> sorted = new ArrayList<Field>(keys);
+		Collections.sort(sorted, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				if (a.compare(Op.LESS_THAN, b))
+					return -1;
+				return a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+			}
+		});
+		sortedKeys = new ArrayList<Field>();
+		for (Field k : sorted)
+			if (sortedKeys.isEmpty() || !sortedKeys.get(sortedKeys.size() - 1).compare(Op.EQUALS, k))
+				sortedKeys.add(k);
+		nextKey = 0;
+		key = null;
+		curp = null;
+		it = null;
+	}
+
+	/**
+	 * Read the next tuple with the current key, from the current page or the pages
+	 * to its right, or move on to the next key. The leaf of the next key is only
+	 * searched from the root if the key is greater than every key on the current page.
+	 *
+	 * @return the next tuple with one of the keys, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (sortedKeys != null) {
+			if (key != null) {
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (f.getKey(t).compare(Op.EQUALS, key))
+						return t;
+					if (f.getKey(t).compare(Op.GREATER_THAN, key)) {
+						key = null;
+						break;
+					}
+				}
+				if (key != null) {
+					// tuples with the key may continue on the next page
+					BTreePageId nextp = curp.getRightSiblingId();
+					if (nextp == null)
+						return null;
+					curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+							nextp, Permissions.READ_ONLY);
+					it = curp.iterator();
+					continue;
+				}
+			}
+
+			if (nextKey == sortedKeys.size())
+				return null;
+			key = sortedKeys.get(nextKey++);
+			if (curp == null || !containsKey(curp, key))
+				curp = f.findLeafPage(tid, Permissions.READ_ONLY, key);
+			it = curp.iterator(key);
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the leaf page has a key greater than or equal to k, so that the
+	 * first tuple with key k, if any, is on the page: the keys are searched in order,
+	 * so no tuple with key k is to the left of the page
+	 */
+	private boolean containsKey(BTreeLeafPage page, Field k) {
+		Iterator<Tuple> last = page.reverseIterator();
+		return last.hasNext() && f.getKey(last.next()).compare(Op.GREATER_THAN_OR_EQ, k);
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+		sortedKeys = null;
+	}
+}
+
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
  * B+ Tree File
@@ -1565,6 +2008,7 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	Field prefix;
 
 	/**
 	 * Constructor for this iterator
@@ -1583,16 +2027,25 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if( ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPageReverse(tid, root, Permissions.READ_ONLY, null);
+		prefix = ipred.getPrefix();
+		if(ipred.getUpperField() != null) {
+			// a range with both bounds starts at its upper bound
+			curp = f.findLeafPageReverse(tid, Permissions.READ_ONLY, ipred.getUpperField());
+			it = curp.reverseIterator(ipred.getUpperField());
+		}
+		else if(prefix != null && (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ)) {
+			// a range on the last field of a composite key starts at the equal leading fields
+			curp = f.findLeafPageReverse(tid, Permissions.READ_ONLY, prefix);
+			it = curp.reverseIterator(prefix);
+		}
+		else if( ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			curp = f.findLeafPageReverse(tid, Permissions.READ_ONLY, null);
+			it = curp.reverseIterator();
 		}
 		else {
-			curp = f.findLeafPageReverse(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPageReverse(tid, Permissions.READ_ONLY, ipred.getField());
+			it = curp.reverseIterator(ipred.getField());
 		}
-		it = curp.reverseIterator();
 	}
 
 	/**
@@ -1608,7 +2061,15 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (prefix != null && f.getKey(t).compare(Op.LESS_THAN, prefix)) {
+					// past the keys with the leading fields of the predicate
+					return null;
+				}
+				if (ipred.getUpperField() != null && !f.getKey(t).compare(ipred.getUpperOp(), ipred.getUpperField())) {
+					// still above the upper bound of the range
+					continue;
+				}
+				if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
@@ -1617,7 +2078,7 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.LESS_THAN, ipred.getField())) {
+						f.getKey(t).compare(Op.LESS_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
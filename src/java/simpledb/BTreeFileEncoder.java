@@ -111,7 +111,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
+		private int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -119,7 +119,16 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] { keyField });
+		}
+
+		/** 
+		 * Construct a TupleComparator on several fields, compared lexicographically
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields;
 		}
 
 		/**
@@ -128,11 +137,13 @@ public class BTreeFileEncoder {
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
+			Field k1 = CompositeField.getKey(t1, keyFields);
+			Field k2 = CompositeField.getKey(t2, keyFields);
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -232,6 +243,10 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (keyType == Type.STRING_TYPE) {
+			// the keys of the internal pages have variable length, but these are not truncated
+			nentries = BTreeInternalPage.getMaxVarEntries(npagebytes);
+		}
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -335,6 +350,30 @@ public class BTreeFileEncoder {
 		return bf;
 	}
 
+	/**
+	 * Streaming method to build the B+ tree file bottom-up from tuples that are
+	 * already sorted on the key field, e.g. by an external sort or by a scan of
+	 * another B+ tree on the same key. Unlike convert, this never holds more than
+	 * two pages per level of the tree in memory and writes the file (almost)
+	 * sequentially, so it can build indexes larger than the heap.
+	 * <p>
+	 * The file of bf is overwritten, so bf must not be in use and none of its
+	 * pages may be cached in the buffer pool.
+	 *
+	 * @param bf - the BTreeFile to build
+	 * @param sorted - the tuples, sorted on the key field of bf
+	 * @param fillFactor - the fraction of each leaf page to fill, between 0.5 and 1.
+	 *        Internal pages are always filled completely.
+	 * @see BTreeBulkLoader
+	 * @throws DbException if the tuples do not match bf or are not sorted
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public static void bulkLoad(BTreeFile bf, OpIterator sorted, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		new BTreeBulkLoader(bf, fillFactor).load(sorted);
+	}
+
 	/**
 	 * Set all the right sibling pointers by following the left sibling pointers
 	 * 
@@ -506,6 +545,19 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] { keyField });
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * of a B+ tree keyed on several fields
+	 * 
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on
+	 * @see #convertToLeafPage(ArrayList, int, int, Type[], int)
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -554,7 +606,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -624,7 +676,66 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		if (keyType == Type.STRING_TYPE)
+			return convertToVarInternalPage(entries, npagebytes, childPageCategory);
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries with STRING keys to a byte array in the format of a
+	 * BTreeInternalPage with variable-length keys: the header, the child pointers,
+	 * and the keys, each a one byte length followed by its characters
+	 * 
+	 * @throws IOException if the keys do not fit on the page
+	 * @see #convertToInternalPage(ArrayList, int, Type, int)
+	 */
+	public static byte[] convertToVarInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) throws IOException {
+		int nslots = BTreeInternalPage.getNumVarSlots(npagebytes);
+		int nheaderbytes = (nslots + 7) / 8;
+		int entrycount = Math.min(entries.size(), nslots - 1);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+
+		// the first entrycount + 1 slots are used
+		for (int i = 0; i < nheaderbytes; i++) {
+			int used = Math.max(0, Math.min(8, entrycount + 1 - i * 8));
+			dos.writeByte((1 << used) - 1);
+		}
+
+		Collections.sort(entries, new EntryComparator());
+		dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+		for (int e = 0; e < entrycount; e++)
+			dos.writeInt(entries.get(e).getRightChild().getPageNumber());
+		for (int e = entrycount + 1; e < nslots; e++)
+			dos.writeInt(0);
+
+		for (int e = 0; e < entrycount; e++) {
+			String s = ((StringField) entries.get(e).getKey()).getValue();
+			dos.writeByte(s.length());
+			dos.writeBytes(s);
+		}
+
+		if (dos.size() > npagebytes)
+			throw new IOException("the keys of " + entrycount + " entries do not fit on an internal page");
+		while (dos.size() < npagebytes)
+			dos.writeByte(0);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * 
+	 * @param keyLen - the number of bytes of a key, which may be a CompositeField
+	 * @see #convertToInternalPage(ArrayList, int, Type, int)
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int keyLen, int childPageCategory)
+					throws IOException {
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -673,7 +784,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
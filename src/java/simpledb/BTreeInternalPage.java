@@ -18,9 +18,23 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final int usedSlots[]; // the used slots in key order, kept up to date by inserts and deletes once built
+	private volatile int numUsed = -1;
+	private final boolean varKeys; // keys are stored with only the bytes they need
 	
 	private int childCategory; // either leaf or internal
 
+	/**
+	 * The number of characters the separators of a STRING-keyed B+ tree are assumed
+	 * to take on average, which sets the number of slots of its internal pages
+	 */
+	static final int SEPARATOR_LEN = 8;
+
+	/**
+	 * The largest number of bytes a key takes on a page with variable-length keys
+	 */
+	static final int MAX_VAR_KEY_SIZE = 1 + Type.STRING_LEN;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +51,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 		}
 	}
 	
@@ -57,6 +71,13 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * The internal pages of a B+ tree keyed on a single STRING field store their
+	 * keys with variable length instead, since the keys are separators truncated
+	 * to the shortest prefix that separates two children: the header is followed
+	 * by all the child pointers and then by the keys of the used slots, each a
+	 * one byte length followed by its characters. The number of slots is chosen
+	 * for keys of about {@link #SEPARATOR_LEN} characters.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +87,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on several fields
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.varKeys = hasVarKeys(td, keyFields);
+		this.numSlots = varKeys ? getNumVarSlots(BufferPool.getPageSize()) : getMaxEntries() + 1;
+		this.usedSlots = new int[numSlots];
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -87,24 +121,29 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (varKeys) {
+			readVarEntries(dis);
 		}
+		else {
+			try{
+				// read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -113,9 +152,13 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * For variable-length keys, this is the number of entries with the longest keys
+	 * that fit; the page holds more entries with shorter keys.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (varKeys)
+			return getMaxVarEntries(BufferPool.getPageSize());
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,13 +172,67 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return true if the internal pages of a B+ tree keyed on the given fields of td
+	 *         store their keys with variable length: a single STRING field
+	 */
+	static boolean hasVarKeys(TupleDesc td, int[] keyFields) {
+		return keyFields.length == 1 && td.getFieldType(keyFields[0]) == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the number of slots of a page with variable-length keys, including
+	 *         the first one, which has a child pointer but no key
+	 */
+	static int getNumVarSlots(int pageSize) {
+		int bitsPerEntryIncludingHeader = (1 + SEPARATOR_LEN) * 8 + INDEX_SIZE * 8 + 1;
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		return (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
+
+	/**
+	 * @return the number of entries with the longest keys that fit on a page with
+	 *         variable-length keys
+	 */
+	static int getMaxVarEntries(int pageSize) {
+		int numSlots = getNumVarSlots(pageSize);
+		int keyBytes = pageSize - INDEX_SIZE - 1 - (numSlots + 7) / 8 - INDEX_SIZE * numSlots;
+		return keyBytes / MAX_VAR_KEY_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes a STRING key takes on a page with variable-length keys
+	 */
+	static int getVarKeySize(Field key) {
+		return 1 + ((StringField) key).getValue().length();
+	}
+
+	/**
+	 * The number of empty slots of a page with variable-length keys, counted as the
+	 * number of entries with the longest keys that still fit: in the key bytes, and
+	 * in the slots scaled to the same number of entries. Counting both in the same
+	 * units keeps the half-full rules of BTreeFile valid for either of them.
+	 *
+	 * @param numEntries - the number of entries on the page
+	 * @param keyBytes - the number of bytes taken by their keys
+	 * @return the number of empty slots, negative if the keys take more bytes than
+	 *         {@link #getMaxVarEntries} entries with the longest keys
+	 */
+	static int getVarEmptySlots(int pageSize, int numEntries, int keyBytes) {
+		int maxEntries = getMaxVarEntries(pageSize);
+		int slots = getNumVarSlots(pageSize) - 1;
+		int bySlots = (int) ((long) (slots - numEntries) * maxEntries / slots);
+		int byBytes = Math.floorDiv(maxEntries * MAX_VAR_KEY_SIZE - keyBytes, MAX_VAR_KEY_SIZE);
+		return Math.min(bySlots, byBytes);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -145,7 +242,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,7 +265,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +278,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = CompositeField.parse(td, keyFields, dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -190,6 +287,23 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	/**
+	 * Read the child pointers and then the keys of a page with variable-length keys.
+	 */
+	private void readVarEntries(DataInputStream dis) throws IOException {
+		for (int i=0; i<numSlots; i++) {
+			int child = dis.readInt();
+			children[i] = isSlotUsed(i) ? child : -1;
+		}
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			byte[] bs = new byte[dis.readUnsignedByte()];
+			dis.readFully(bs);
+			keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+		}
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -262,6 +376,39 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (varKeys) {
+			try {
+				writeVarEntries(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		else {
+			writeEntries(dos);
+		}
+
+		// padding
+		int zerolen = BufferPool.getPageSize() - dos.size();
+		byte[] zeroes = new byte[zerolen];
+		try {
+			dos.write(zeroes, 0, zerolen);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Write the keys and then the child pointers of a page with fixed-length keys.
+	 */
+	private void writeEntries(DataOutputStream dos) {
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -269,7 +416,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -313,24 +460,21 @@ public class BTreeInternalPage extends BTreePage {
 				e.printStackTrace();
 			}
 		}
+	}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Write the child pointers and then the keys of a page with variable-length keys.
+	 */
+	private void writeVarEntries(DataOutputStream dos) throws IOException {
+		for (int i=0; i<numSlots; i++)
+			dos.writeInt(isSlotUsed(i) ? children[i] : 0);
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			String s = ((StringField) keys[i]).getValue();
+			dos.writeByte(s.length());
+			dos.writeBytes(s);
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -352,6 +496,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		usedSlots(); // build the used slots before the header changes
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -364,6 +509,7 @@ public class BTreeInternalPage extends BTreePage {
 				}	
 			}
 		}
+		removeUsedSlot(rid.getTupleNumber());
 		e.setRecordId(null);
 	}
 
@@ -395,8 +541,10 @@ public class BTreeInternalPage extends BTreePage {
 	
 	/**
 	 * Update the key and/or child pointers of an entry at the location specified by its 
-	 * record id.
+	 * record id. A longer key may leave a page with variable-length keys overfull, in
+	 * which case the caller must split it.
 	 * @param e - the entry with updated key and/or child pointers
+	 * @see #isOverfull()
 	 * @throws DbException if this entry is not on this page, entry slot is
 	 *         already empty, or updating this key would put the entry out of 
 	 *         order on the page
@@ -441,7 +589,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!CompositeField.isKey(e.getKey(), td, keyFields))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -463,6 +611,9 @@ public class BTreeInternalPage extends BTreePage {
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			usedSlots[0] = 0;
+			usedSlots[1] = 1;
+			numUsed = 2;
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -478,6 +629,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
+		if (varKeys && getUsedKeyBytes() + getVarKeySize(e.getKey()) > getMaxEntries() * MAX_VAR_KEY_SIZE)
+			throw new DbException("called insertEntry on page with no room for the key.");
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
@@ -523,6 +676,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// shift entries back or forward to fill empty slot and make room for new entry
 		// while keeping entries in sorted order
+		usedSlots(); // build the used slots before the header changes
 		int goodSlot = -1;
 		if(emptySlot < lessOrEqKey) {
 			for(int i = emptySlot; i < lessOrEqKey; i++) {
@@ -539,6 +693,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		addUsedSlot(goodSlot);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
@@ -555,6 +710,7 @@ public class BTreeInternalPage extends BTreePage {
 			keys[to] = keys[from];
 			children[to] = children[from];
 			markSlotUsed(from, false);
+			moveUsedSlot(from, to);
 		}
 	}
 
@@ -562,13 +718,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int n = usedSlots();
+		return n == 0 ? 0 : n - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For variable-length keys, this
+	 * is the number of entries with the longest keys that still fit.
 	 */
 	public int getNumEmptySlots() {
+		if (varKeys)
+			return Math.max(0, getVarEmptySlots(BufferPool.getPageSize(), getNumEntries(), getUsedKeyBytes()));
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -578,6 +738,49 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * Returns true if the keys of this page take more room than {@link #getMaxEntries()}
+	 * entries with the longest keys, which only happens after a key was updated to a
+	 * longer one. Such a page must be split before it is written out.
+	 */
+	public boolean isOverfull() {
+		return varKeys && getVarEmptySlots(BufferPool.getPageSize(), getNumEntries(), getUsedKeyBytes()) < 0;
+	}
+
+	/**
+	 * Returns the position (counting from 1) of the entry to push up when this page is
+	 * split: the middle entry, or for variable-length keys the entry in the middle of
+	 * the key bytes, so that both halves fit.
+	 */
+	public int getSplitPoint() {
+		int n = getNumEntries();
+		if (!varKeys || n < 3)
+			return n / 2 + 1;
+		int total = getUsedKeyBytes();
+		int bytes = 0;
+		int count = 0;
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				count++;
+				bytes += getVarKeySize(keys[i]);
+				if (bytes * 2 > total)
+					break;
+			}
+		}
+		return Math.min(Math.max(count, 2), n - 1);
+	}
+
+	/**
+	 * Returns the number of bytes taken by the keys of a page with variable-length keys.
+	 */
+	private int getUsedKeyBytes() {
+		int bytes = 0;
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				bytes += getVarKeySize(keys[i]);
+		return bytes;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -601,6 +804,106 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Build the dense array of used slots from the header the first time it is needed.
+	 * Inserts and deletes then shift it in place. Readers holding a shared lock may
+	 * race to build it, but they all write the same slots.
+	 * @return the number of used slots, including slot 0
+	 */
+	private int usedSlots() {
+		int n = numUsed;
+		if(n < 0) {
+			n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					usedSlots[n++] = i;
+			numUsed = n;
+		}
+		return n;
+	}
+
+	/**
+	 * Add a slot which has just been filled to the array of used slots, shifting the
+	 * used slots after it up by one position
+	 */
+	private void addUsedSlot(int slot) {
+		int n = usedSlots();
+		int pos = -Arrays.binarySearch(usedSlots, 0, n, slot) - 1;
+		System.arraycopy(usedSlots, pos, usedSlots, pos + 1, n - pos);
+		usedSlots[pos] = slot;
+		numUsed = n + 1;
+	}
+
+	/**
+	 * Replace a used slot by the empty slot next to it, which keeps the array of used
+	 * slots in order
+	 */
+	private void moveUsedSlot(int from, int to) {
+		usedSlots[Arrays.binarySearch(usedSlots, 0, usedSlots(), from)] = to;
+	}
+
+	/**
+	 * Remove a slot which has just been emptied from the array of used slots, shifting
+	 * the used slots after it down by one position
+	 */
+	private void removeUsedSlot(int slot) {
+		int n = usedSlots();
+		int pos = Arrays.binarySearch(usedSlots, 0, n, slot);
+		System.arraycopy(usedSlots, pos + 1, usedSlots, pos, n - pos - 1);
+		numUsed = n - 1;
+	}
+
+	/**
+	 * Find the child page which may contain the left-most occurrence of the key f, by
+	 * binary search over the keys of this page: the left child of the first key greater
+	 * than or equal to f, or the right-most child if there is no such key.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int n = usedSlots();
+		if(n == 0)
+			return null;
+		int lo = 1;
+		if(f != null) {
+			int hi = n;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(keys[usedSlots[mid]].compare(Op.LESS_THAN, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		}
+		return new BTreePageId(pid.getTableId(), children[usedSlots[lo - 1]], childCategory);
+	}
+
+	/**
+	 * Find the child page which may contain the right-most occurrence of the key f, by
+	 * binary search over the keys of this page: the right child of the last key less
+	 * than or equal to f, or the left-most child if there is no such key.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChildReverse(Field f) {
+		int n = usedSlots();
+		if(n == 0)
+			return null;
+		int lo = n;
+		if(f != null) {
+			lo = 1;
+			int hi = n;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(keys[usedSlots[mid]].compare(Op.LESS_THAN_OR_EQ, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		}
+		return new BTreePageId(pid.getTableId(), children[usedSlots[lo - 1]], childCategory);
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -643,6 +946,13 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * protected method used by the reverse iterator to find the last slot of this page
+	 */
+	protected int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith child page id out of this page
 	 * @param i - the index of the child page id
@@ -741,7 +1051,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
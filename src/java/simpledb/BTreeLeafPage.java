@@ -15,6 +15,8 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+	private final int usedSlots[]; // the used slots in key order, kept up to date by inserts and deletes once built
+	private volatile int numUsed = -1;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -40,6 +42,30 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Check the keys of this page, comparing them on the key fields of the B+ tree
+	 */
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+		Field prev = lowerBound;
+		assert(this.getId().pgcateg() == BTreePageId.LEAF);
+
+		Iterator<Tuple> it = this.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, getKey(t)));
+			prev = getKey(t);
+			assert(t.getRecordId().getPageId().equals(this.getId()));
+		}
+
+		if (null != upperBound && null != prev){
+			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
+		}
+
+		if (checkoccupancy && depth > 0) {
+			assert(getNumTuples() >= getMaxTuples()/2);
+		}
+	}
+
 	/**
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
@@ -62,8 +88,20 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on several fields
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
+		this.usedSlots = new int[numSlots];
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -137,7 +175,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -294,7 +332,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		usedSlots(); // build the used slots before the header changes
 		markSlotUsed(rid.getTupleNumber(), false);
+		removeUsedSlot(rid.getTupleNumber());
 		t.setRecordId(null);
 	}
 
@@ -310,29 +350,23 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
+		// find the first empty slot: the used slots before it are exactly 0..emptySlot-1
+		int n = usedSlots();
+		if (n == numSlots)
 			throw new DbException("called addTuple on page with no empty slots.");
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (usedSlots[mid] == mid)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		int emptySlot = lo;
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int pos = upperBound(getKey(t));
+		int lessOrEqKey = pos > 0 ? usedSlots[pos - 1] : -1;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -352,6 +386,7 @@ public class BTreeLeafPage extends BTreePage {
 
 		// insert new record into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		addUsedSlot(goodSlot);
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
@@ -369,6 +404,7 @@ public class BTreeLeafPage extends BTreePage {
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
+			moveUsedSlot(from, to);
 		}
 	}
 
@@ -475,6 +511,87 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Build the dense array of used slots from the header the first time it is needed.
+	 * Inserts and deletes then shift it in place. Readers holding a shared lock may
+	 * race to build it, but they all write the same slots.
+	 * @return the number of used slots
+	 */
+	private int usedSlots() {
+		int n = numUsed;
+		if(n < 0) {
+			n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					usedSlots[n++] = i;
+			numUsed = n;
+		}
+		return n;
+	}
+
+	/**
+	 * Add a slot which has just been filled to the array of used slots, shifting the
+	 * used slots after it up by one position
+	 */
+	private void addUsedSlot(int slot) {
+		int n = usedSlots();
+		int pos = -Arrays.binarySearch(usedSlots, 0, n, slot) - 1;
+		System.arraycopy(usedSlots, pos, usedSlots, pos + 1, n - pos);
+		usedSlots[pos] = slot;
+		numUsed = n + 1;
+	}
+
+	/**
+	 * Replace a used slot by the empty slot next to it, which keeps the array of used
+	 * slots in order
+	 */
+	private void moveUsedSlot(int from, int to) {
+		usedSlots[Arrays.binarySearch(usedSlots, 0, usedSlots(), from)] = to;
+	}
+
+	/**
+	 * Remove a slot which has just been emptied from the array of used slots, shifting
+	 * the used slots after it down by one position
+	 */
+	private void removeUsedSlot(int slot) {
+		int n = usedSlots();
+		int pos = Arrays.binarySearch(usedSlots, 0, n, slot);
+		System.arraycopy(usedSlots, pos + 1, usedSlots, pos, n - pos - 1);
+		numUsed = n - 1;
+	}
+
+	/**
+	 * Binary search for the position in usedSlots of the first tuple whose key is
+	 * greater than or equal to f.
+	 */
+	private int lowerBound(Field f) {
+		int lo = 0, hi = usedSlots();
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(getKey(tuples[usedSlots[mid]]).compare(Predicate.Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Binary search for the position in usedSlots of the first tuple whose key is
+	 * greater than f.
+	 */
+	private int upperBound(Field f) {
+		int lo = 0, hi = usedSlots();
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(getKey(tuples[usedSlots[mid]]).compare(Predicate.Op.LESS_THAN_OR_EQ, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -483,6 +600,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page starting at the first tuple whose
+	 * key is greater than or equal to f, found by binary search
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		if(f == null)
+			return iterator();
+		int pos = lowerBound(f);
+		return new BTreeLeafPageIterator(this, pos < numUsed ? usedSlots[pos] : numSlots);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +619,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return a reverse iterator over the tuples on this page starting at the last tuple
+	 * whose key is less than or equal to f, found by binary search
+	 */
+	public Iterator<Tuple> reverseIterator(Field f) {
+		if(f == null)
+			return reverseIterator();
+		int pos = upperBound(f);
+		return new BTreeLeafPageReverseIterator(this, pos > 0 ? usedSlots[pos - 1] : -1);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -529,6 +668,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	BTreeLeafPageIterator(BTreeLeafPage p, int startSlot) {
+		this.p = p;
+		this.curTuple = startSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -578,6 +722,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	BTreeLeafPageReverseIterator(BTreeLeafPage p, int startSlot) {
+		this.p = p;
+		this.curTuple = startSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -19,6 +19,7 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -49,11 +50,38 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage keyed on several fields, compared lexicographically
+	 * in the given order
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on
+	 * @see CompositeField
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keys;
+		this.keyField = keys[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of a tuple stored in this B+ tree
+	 */
+	protected Field getKey(Tuple t) {
+		return CompositeField.getKey(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes taken by a key of this B+ tree
+	 */
+	protected int getKeySize() {
+		return CompositeField.getLen(td, keyFields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -14,6 +14,7 @@ public class BTreeScan implements OpIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private Collection<Field> keys = null;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -43,6 +44,21 @@ public class BTreeScan implements OpIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan over the tuples of the specified table whose key
+	 * is one of the given keys, as for an IN list.
+	 * 
+	 * @param keys
+	 *            the keys to look up, in any order
+	 * @see BTreeFile#indexIterator(TransactionId, Collection)
+	 */
+	public static BTreeScan lookup(TransactionId tid, int tableid, String tableAlias, Collection<Field> keys) {
+		BTreeScan scan = new BTreeScan(tid, tableid, tableAlias, (IndexPredicate) null);
+		scan.keys = keys;
+		scan.reset(tableid, tableAlias);
+		return scan;
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -76,7 +92,10 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(keys != null) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, keys);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
@@ -5,6 +5,14 @@ import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -21,6 +29,21 @@ public class BufferPool {
     enum LockType{
         Excluscive,Shared
     }
+
+    /**
+     * How the lock manager deals with deadlocks. DETECTION searches the waits-for graph
+     * whenever a transaction has to wait. The other policies prevent deadlocks up front by
+     * comparing transaction ages (a smaller TransactionId is an older transaction):
+     * <ul>
+     * <li> WAIT_DIE: an older requester waits for a younger holder, a younger requester aborts
+     * <li> WOUND_WAIT: an older requester wounds (aborts) younger holders, a younger requester waits
+     * <li> NO_WAIT: any requester that would have to wait aborts immediately
+     * </ul>
+     */
+    public enum DeadlockPolicy {
+        DETECTION, WAIT_DIE, WOUND_WAIT, NO_WAIT
+    }
+
     class Lock{
         private PageId pid;
         private LockType type;
@@ -52,14 +75,20 @@ public class BufferPool {
         private  Map<TransactionId,ArrayList<PageId>> transactionLocks;
         private  Map<PageId, Lock> pageLocks;
         private  Map<TransactionId,ArrayList<PageId>> waitTable;//依赖图
+        private  Set<TransactionId> woundedTransactions;//WOUND_WAIT下被更老事务抢占的事务
+        private volatile DeadlockPolicy policy=DeadlockPolicy.DETECTION;
+        //用j.u.c锁代替synchronized/wait, 等待锁的虚拟线程不会钉住载体线程
+        private final ReentrantLock latch=new ReentrantLock();
+        private final Condition lockReleased=latch.newCondition();
         public LockManager(){
 //            transactionLocks=new HashMap<>();
 //            pageLocks=new HashMap<>();
             transactionLocks=new ConcurrentHashMap<>();
             pageLocks=new ConcurrentHashMap<>();
             waitTable=new ConcurrentHashMap<>();
+            woundedTransactions=ConcurrentHashMap.newKeySet();
         }
-        public synchronized void updateTransactionLocks(TransactionId tid,PageId pid){
+        private void updateTransactionLocks(TransactionId tid,PageId pid){
             ArrayList<PageId> curLockList = transactionLocks.get(tid);
             if (curLockList == null) {//新事务
                 ArrayList<PageId> newLockList = new ArrayList<>();
@@ -69,10 +98,17 @@ public class BufferPool {
                 curLockList.add(pid);
             }
         }
-        public synchronized boolean independencyGraphDeadLockCheck(TransactionId tid,PageId pid){
+        private boolean independencyGraphDeadLockCheck(TransactionId tid,PageId pid){
+            return independencyGraphDeadLockCheck(tid,pid,new HashSet<TransactionId>());
+        }
+        //visited: 已展开过等待页的事务, 依赖图中不含tid的环不会无限递归
+        private boolean independencyGraphDeadLockCheck(TransactionId tid,PageId pid,Set<TransactionId> visited){
             //直接
             boolean ifDeadLock=false;
-            ArrayList<TransactionId> nowLockHolders=pageLocks.get(pid).getHolders();
+            Lock nowLock=pageLocks.get(pid);
+            if(nowLock==null)
+                return false;//等待的锁已被释放
+            ArrayList<TransactionId> nowLockHolders=nowLock.getHolders();
             ArrayList<PageId>nowOccupyResources=transactionLocks.get(tid);
             if(nowLockHolders!=null&&!nowLockHolders.isEmpty()) {
                 for (TransactionId nowLockHolder : nowLockHolders) {
@@ -98,11 +134,11 @@ public class BufferPool {
                 //间接
                 if(nowLockHolders!=null&&!nowLockHolders.isEmpty()) {
                     for (TransactionId nowLockHolder : nowLockHolders) {
-                        if(nowLockHolder!=tid) {
+                        if(nowLockHolder!=tid&&visited.add(nowLockHolder)) {
                             if (waitTable.containsKey(nowLockHolder)) {
                                 ArrayList<PageId>tempPages=waitTable.get(nowLockHolder);
                                 for(PageId tempPage:tempPages){
-                                    ifDeadLock=independencyGraphDeadLockCheck(tid,tempPage);
+                                    ifDeadLock=independencyGraphDeadLockCheck(tid,tempPage,visited);
                                     if (ifDeadLock)
                                         break;
                                 }
@@ -116,11 +152,52 @@ public class BufferPool {
             }
 
         }
-        public synchronized void acquireLock(TransactionId tid,PageId pid,LockType type) throws TransactionAbortedException {
+        /**
+         * 按年龄预防死锁: 返回true表示请求者tid应当中止, WOUND_WAIT下会抢占更年轻的持有者
+         */
+        private boolean preventDeadlock(TransactionId tid,Lock curLock){
+            switch (policy){
+                case NO_WAIT:
+                    return true;
+                case WAIT_DIE:
+                    for(TransactionId holder:curLock.getHolders()){
+                        if(!holder.equals(tid)&&holder.getId()<tid.getId())
+                            return true;//年轻者死亡
+                    }
+                    return false;
+                case WOUND_WAIT:
+                    for(TransactionId holder:curLock.getHolders()){
+                        if(!holder.equals(tid)&&tid.getId()<holder.getId())
+                            woundedTransactions.add(holder);//老者抢占
+                    }
+                    lockReleased.signalAll();//唤醒正在等待的被抢占者
+                    return false;
+                default:
+                    return false;
+            }
+        }
+        private void removeWaiting(TransactionId tid,PageId pid){
+            if(waitTable.containsKey(tid)){
+                waitTable.get(tid).remove(pid);
+                if(waitTable.get(tid).isEmpty())
+                    waitTable.remove(tid);
+            }
+        }
+        public void acquireLock(TransactionId tid,PageId pid,LockType type) throws TransactionAbortedException {
+            latch.lock();
+            try {
+                acquireLockLatched(tid,pid,type);
+            } finally {
+                latch.unlock();
+            }
+        }
+        private void acquireLockLatched(TransactionId tid,PageId pid,LockType type) throws TransactionAbortedException {
             //System.out.println(tid+" "+pid.getPageNumber()+" "+type);
-            long begin=System.currentTimeMillis();
-            long timeout=new Random().nextInt(5001) ;
             while (true) {
+                if(woundedTransactions.contains(tid)){
+                    removeWaiting(tid,pid);
+                    throw new TransactionAbortedException();
+                }
                 Lock curLock = pageLocks.get(pid);
                 if (curLock == null) {//无锁
                     ArrayList<TransactionId> new_holders = new ArrayList<>();
@@ -155,72 +232,145 @@ public class BufferPool {
                         }
                     }
                 }
-                //修改waitTable
-                if(waitTable.containsKey(tid)){
-                    waitTable.get(tid).add(pid);
-                }else{
-                    ArrayList<PageId>waitPages=new ArrayList<>();
-                    waitPages.add(pid);
-                    waitTable.put(tid,waitPages);
-                }
-                //依赖图死锁检查
-                if(independencyGraphDeadLockCheck(tid,pid))
+                if(policy==DeadlockPolicy.DETECTION) {
+                    //修改waitTable
+                    if (waitTable.containsKey(tid)) {
+                        if (!waitTable.get(tid).contains(pid))
+                            waitTable.get(tid).add(pid);
+                    } else {
+                        ArrayList<PageId> waitPages = new ArrayList<>();
+                        waitPages.add(pid);
+                        waitTable.put(tid, waitPages);
+                    }
+                    //依赖图死锁检查
+                    if (independencyGraphDeadLockCheck(tid, pid)) {
+                        removeWaiting(tid, pid);
+                        throw new TransactionAbortedException();
+                    }
+                }else if(preventDeadlock(tid,curLock)){
                     throw new TransactionAbortedException();
-                //超时timeout死锁检查
-//                if (System.currentTimeMillis() - begin > timeout) {
-//                    throw new TransactionAbortedException();
-//                }
-                try {
-                    wait(timeout);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
                 }
+                //只在锁被释放或本事务被抢占时醒来, 死锁由上面的检查或预防策略处理
+                lockReleased.awaitUninterruptibly();
             }
             //已获得锁，从waitTable中删除
-            if(waitTable.containsKey(tid)){
-                waitTable.get(tid).remove(pid);
-                if(waitTable.get(tid).isEmpty())
-                    waitTable.remove(tid);
-            }
+            removeWaiting(tid,pid);
 
         }
-        public synchronized void releaseLock(TransactionId tid,PageId pid){
-            //System.out.println("release   "+tid+" "+pid.getPageNumber());
-            if (transactionLocks.containsKey(tid)) {
-                transactionLocks.get(tid).remove(pid);
-                if (transactionLocks.get(tid).size() == 0) {
-                    transactionLocks.remove(tid);
+        public void releaseLock(TransactionId tid,PageId pid){
+            latch.lock();
+            try {
+                //System.out.println("release   "+tid+" "+pid.getPageNumber());
+                if (transactionLocks.containsKey(tid)) {
+                    transactionLocks.get(tid).remove(pid);
+                    if (transactionLocks.get(tid).size() == 0) {
+                        transactionLocks.remove(tid);
+                    }
                 }
-            }
 
-            // remove from locktable
-            if (pageLocks.containsKey(pid)) {
-                pageLocks.get(pid).getHolders().remove(tid);
-                if (pageLocks.get(pid).getHolders().size() == 0) {
-                    pageLocks.remove(pid);
+                // remove from locktable
+                if (pageLocks.containsKey(pid)) {
+                    pageLocks.get(pid).getHolders().remove(tid);
+                    if (pageLocks.get(pid).getHolders().size() == 0) {
+                        pageLocks.remove(pid);
+                    }
                 }
+                //唤醒等待者, 提前释放的B+树内部页锁无需等到超时
+                lockReleased.signalAll();
+            } finally {
+                latch.unlock();
             }
         }
-        public synchronized void releaseAllLocks(TransactionId tid){
-            ArrayList<PageId>curLockList=transactionLocks.get(tid);
-            if(curLockList!=null) {
-                for (int i = 0; i < curLockList.size(); i++) {
-                    releaseLock(tid, curLockList.get(i));
+        public void releaseAllLocks(TransactionId tid){
+            latch.lock();
+            try {
+                woundedTransactions.remove(tid);
+                ArrayList<PageId>curLockList=transactionLocks.get(tid);
+                if(curLockList!=null) {
+                    //releaseLock会修改curLockList, 需遍历副本
+                    for (PageId pid : new ArrayList<>(curLockList)) {
+                        releaseLock(tid, pid);
+                    }
                 }
+            } finally {
+                latch.unlock();
             }
         }
-        public synchronized boolean holdsLock(TransactionId tid,PageId pid){
-            if(transactionLocks.containsKey(tid)){
-                if(transactionLocks.get(tid).contains(pid))
-                    return true;
-                else
-                    return false;
-            }else
-                return false;
+        public boolean holdsLock(TransactionId tid,PageId pid){
+            latch.lock();
+            try {
+                ArrayList<PageId> curLockList=transactionLocks.get(tid);
+                return curLockList!=null&&curLockList.contains(pid);
+            } finally {
+                latch.unlock();
+            }
+        }
+        //页上没有独占锁时复制其内容, 否则返回null; 持有latch期间其他事务拿不到独占锁, 复制出的是已提交版本
+        public byte[] copyUnlessExclusive(PageId pid,Page page){
+            latch.lock();
+            try {
+                Lock lock=pageLocks.get(pid);
+                if(lock!=null&&lock.getType()==LockType.Excluscive)
+                    return null;
+                return page.getPageData();
+            } finally {
+                latch.unlock();
+            }
         }
 
     }
+    /**
+     * Bookkeeping for a read-only transaction: the commit version its snapshot
+     * was taken at and the copies of the pages it has read so far.
+     */
+    class ReadSnapshot{
+        private final long version;
+        private final Map<PageId,Page> pages=new ConcurrentHashMap<>();
+        ReadSnapshot(long version){
+            this.version=version;
+        }
+    }
+    /**
+     * Bookkeeping for a transaction running under optimistic concurrency control:
+     * the validation clock value when it started and the pages it read without
+     * taking a shared lock.
+     */
+    class OptimisticState{
+        private final long startTs;
+        private final Set<PageId> readSet=ConcurrentHashMap.newKeySet();
+        private volatile boolean conflict=false;//读到了其他事务未提交的写
+        OptimisticState(long startTs){
+            this.startTs=startTs;
+        }
+    }
     private LockManager lockManager;
+    //保护页的写回与淘汰, LogFile在检查点和恢复时也需持有
+    private final ReentrantLock poolLatch=new ReentrantLock();
+    //未提交就已写回磁盘的页: 其before image不再等于磁盘内容
+    private final Set<PageId> flushedUncommitted=ConcurrentHashMap.newKeySet();
+    //脏页表: 已写日志但还没写回磁盘的页 -> 其最早一条未落盘日志记录的偏移(recLSN), 模糊检查点时记入日志
+    private final ConcurrentHashMap<PageId,Long> dirtyPageTable=new ConcurrentHashMap<>();
+    //NO-FORCE下已提交但还没写回磁盘的页, 由后台写页线程或淘汰时写回
+    private final Set<PageId> committedDirty=ConcurrentHashMap.newKeySet();
+    private volatile boolean noForce=false;
+    //STEAL下被淘汰的未提交页 -> 其已提交版本, 磁盘上此时是未提交的内容, 只读事务从这里读
+    private final Map<PageId,Page> stolenBeforeImages=new ConcurrentHashMap<>();
+    private volatile boolean steal=false;
+    private final Map<TransactionId,OptimisticState> optimisticTransactions=new ConcurrentHashMap<>();
+    //乐观事务运行期间结束的事务写集合, 按结束时刻排序, 用于向后验证
+    private final ConcurrentSkipListMap<Long,Set<PageId>> finishedWriteSets=new ConcurrentSkipListMap<>();
+    private final AtomicLong validationClock=new AtomicLong(0);
+    //使验证与写集合的登记、清理互斥
+    private final ReentrantLock validationLatch=new ReentrantLock();
+    private final Map<TransactionId,ReadSnapshot> readOnlyTransactions=new ConcurrentHashMap<>();
+    //最近一次发布完成的提交版本, 只读事务开始时以它为快照
+    private final AtomicLong commitVersion=new AtomicLong(0);
+    //页 -> 最后一次改写它的提交版本; 不在其中的页自启动以来没有被提交改写过
+    private final Map<PageId,Long> pageVersions=new ConcurrentHashMap<>();
+    //使提交版本的发布互斥, 只在内存中更新before image
+    private final ReentrantLock publishLatch=new ReentrantLock();
+    //STEAL淘汰未提交页的次数, 只读事务借此发现读盘期间磁盘内容被换成了未提交版本
+    private final AtomicLong stealCount=new AtomicLong(0);
     /** Bytes per page, including header. */
     private Map<PageId,Page> bufferpool;
     private int numPages;
@@ -233,6 +383,16 @@ public class BufferPool {
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** How often the background page writer writes back committed pages */
+    static final long PAGE_WRITER_INTERVAL_MILLIS = 100;
+
+    private static final ScheduledExecutorService pageWriter =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "simpledb-page-writer");
+            t.setDaemon(true);
+            return t;
+        });
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -243,6 +403,189 @@ public class BufferPool {
         bufferpool=new ConcurrentHashMap<>(numPages);
         this.numPages=numPages;
         lockManager=new LockManager();
+
+        //只保留弱引用: 被Database替换掉的缓冲池停止写页
+        final WeakReference<BufferPool> self=new WeakReference<>(this);
+        pageWriter.scheduleWithFixedDelay(() -> {
+            BufferPool pool=self.get();
+            if(pool==null||Database.getBufferPool()!=pool)
+                throw new IllegalStateException("buffer pool replaced"); // cancels the task
+            try {
+                pool.writeCommittedPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        },PAGE_WRITER_INTERVAL_MILLIS,PAGE_WRITER_INTERVAL_MILLIS,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Choose the commit policy. Under FORCE (the default) a commit writes
+     * every page the transaction dirtied; under NO-FORCE it only logs them
+     * and forces the log, and the pages stay in the pool until the
+     * background page writer or an eviction writes them. Recovery redoes
+     * committed updates that had not reached disk.
+     */
+    public void setNoForce(boolean noForce) {
+        this.noForce = noForce;
+    }
+
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /**
+     * Choose the eviction policy. Under NO-STEAL (the default) a pool full
+     * of pages dirtied by running transactions cannot evict anything; under
+     * STEAL such a page is evicted after its update record is logged and
+     * the log forced, and an abort undoes it from the log.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Set the policy the lock manager uses to handle deadlocks. Defaults to
+     * {@link DeadlockPolicy#DETECTION}.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManager.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return lockManager.policy;
+    }
+
+    /**
+     * Run the specified transaction under optimistic concurrency control. Its
+     * READ_ONLY page requests no longer take shared locks; the pages are recorded
+     * in a read set instead and checked by {@link #validateOptimistic} at commit.
+     * READ_WRITE requests still take exclusive locks held until the transaction
+     * completes, since pages are updated in place and an abort discards them from
+     * the buffer pool; writers therefore block each other as under 2PL.
+     *
+     * @param tid the transaction, which must not have fetched any pages yet
+     */
+    public void beginOptimistic(TransactionId tid) {
+        //与写集合的清理互斥, 否则在开始时刻之后登记的写集合可能被清掉
+        validationLatch.lock();
+        try {
+            optimisticTransactions.put(tid,new OptimisticState(validationClock.get()));
+        } finally {
+            validationLatch.unlock();
+        }
+    }
+
+    /**
+     * Run the specified transaction as a read-only transaction. It takes no locks
+     * at all and reads a snapshot of the database as of the last commit before
+     * this call: a page another transaction is currently writing is returned as
+     * its before image, and a page is copied once and then returned unchanged for
+     * the rest of the transaction. If the transaction needs a page that a later
+     * commit has changed, getPage throws TransactionAbortedException and the
+     * transaction has to be retried. Requests for READ_WRITE permission fail, so
+     * the transaction can never dirty a page.
+     *
+     * @param tid the transaction, which must not have fetched any pages yet
+     */
+    public void beginReadOnly(TransactionId tid) {
+        readOnlyTransactions.put(tid,new ReadSnapshot(commitVersion.get()));
+    }
+
+    /** Return true if the specified transaction is a read-only transaction */
+    public boolean isReadOnly(TransactionId tid) {
+        return readOnlyTransactions.containsKey(tid);
+    }
+
+    /** Return true if the specified transaction runs under optimistic concurrency control */
+    public boolean isOptimistic(TransactionId tid) {
+        return optimisticTransactions.containsKey(tid);
+    }
+
+    /**
+     * Backward validation of an optimistic transaction: fails if a page it read
+     * was written by a transaction that finished after it started, or is still
+     * exclusively locked by another transaction. Does nothing for transactions
+     * not registered with {@link #beginOptimistic}.
+     *
+     * @param tid the transaction about to commit
+     * @throws TransactionAbortedException if validation fails; the caller should abort
+     */
+    public void validateOptimistic(TransactionId tid) throws TransactionAbortedException {
+        OptimisticState state=optimisticTransactions.get(tid);
+        if(state==null)
+            return;
+        validationLatch.lock();
+        try {
+            if(state.conflict)
+                throw new TransactionAbortedException();
+            for(Set<PageId> writeSet:finishedWriteSets.tailMap(state.startTs,false).values()){
+                for(PageId pid:writeSet){
+                    if(state.readSet.contains(pid))
+                        throw new TransactionAbortedException();
+                }
+            }
+            for(PageId pid:state.readSet){
+                if(lockedExclusivelyByOther(tid,pid))
+                    throw new TransactionAbortedException();
+            }
+        } finally {
+            validationLatch.unlock();
+        }
+    }
+
+    private boolean lockedExclusivelyByOther(TransactionId tid,PageId pid){
+        Lock lock=lockManager.pageLocks.get(pid);
+        if(lock==null||lock.getType()!=LockType.Excluscive)
+            return false;
+        List<TransactionId> holders=new ArrayList<>(lock.getHolders());
+        return !holders.isEmpty()&&!holders.contains(tid);
+    }
+
+    /**
+     * Remember the pages tid holds exclusive locks on, so that optimistic
+     * transactions which are still running can validate against them. Called
+     * before the locks are released, whether tid commits or aborts. The write
+     * set is recorded even if no optimistic transaction is running, since one
+     * may start before the locks are released; {@link #endOptimistic} drops it
+     * once no optimistic transaction started before it.
+     */
+    private void recordWriteSet(TransactionId tid){
+        ArrayList<PageId> curLockList=lockManager.transactionLocks.get(tid);
+        if(curLockList==null)
+            return;
+        Set<PageId> writeSet=new HashSet<>();
+        for(PageId pid:new ArrayList<>(curLockList)){
+            Lock lock=lockManager.pageLocks.get(pid);
+            if(lock!=null&&lock.getType()==LockType.Excluscive)
+                writeSet.add(pid);
+        }
+        if(!writeSet.isEmpty()){
+            validationLatch.lock();
+            try {
+                finishedWriteSets.put(validationClock.incrementAndGet(),writeSet);
+            } finally {
+                validationLatch.unlock();
+            }
+        }
+    }
+
+    /** Forget tid's optimistic state and prune write sets no running transaction needs */
+    private void endOptimistic(TransactionId tid){
+        if(optimisticTransactions.remove(tid)==null&&finishedWriteSets.isEmpty())
+            return;
+        validationLatch.lock();
+        try {
+            long oldest=Long.MAX_VALUE;
+            for(OptimisticState state:optimisticTransactions.values())
+                oldest=Math.min(oldest,state.startTs);
+            finishedWriteSets.headMap(oldest,true).clear();
+        } finally {
+            validationLatch.unlock();
+        }
     }
 
     public static int getPageSize() {
@@ -281,7 +624,17 @@ public class BufferPool {
             type=LockType.Shared;
         else
             type=LockType.Excluscive;
-        lockManager.acquireLock(tid,pid,type);
+        ReadSnapshot snapshot=readOnlyTransactions.get(tid);
+        if(snapshot!=null)
+            return getCommittedPage(snapshot,tid,pid,perm);
+        OptimisticState optimistic=optimisticTransactions.get(tid);
+        if(optimistic!=null&&type==LockType.Shared&&!lockManager.holdsLock(tid,pid)){
+            //乐观读: 不加锁, 记入读集合
+            optimistic.readSet.add(pid);
+            if(lockedExclusivelyByOther(tid,pid))
+                optimistic.conflict=true;
+        }else
+            lockManager.acquireLock(tid,pid,type);
         //System.out.println("finish");
         if(bufferpool.get(pid)==null){
             int tabelID=pid.getTableId();
@@ -295,6 +648,56 @@ public class BufferPool {
             return bufferpool.get(pid);
     }
 
+    /**
+     * Lock-free page access for read-only transactions: returns the copy of the
+     * page in the transaction's snapshot, making it on the first access. The copy
+     * is of the last committed version of the page, and is only accepted if no
+     * commit after the snapshot has changed the page.
+     */
+    private Page getCommittedPage(ReadSnapshot snapshot, TransactionId tid, PageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        if(perm!=Permissions.READ_ONLY)
+            throw new DbException("read-only transaction "+tid.getId()+" cannot write page "+pid);
+        Page copy=snapshot.pages.get(pid);
+        if(copy!=null)
+            return copy;
+        copy=committedCopy(pid);
+        //提交先登记页的版本再更新before image, 读到的若是快照之后的版本这里一定能发现
+        Long version=pageVersions.get(pid);
+        if(version!=null&&version>snapshot.version)
+            throw new TransactionAbortedException();
+        snapshot.pages.put(pid,copy);
+        return copy;
+    }
+
+    /**
+     * A copy of the last committed version of a page, taken without locks: the
+     * before image of a page stolen by an uncommitted transaction, or else of
+     * the page in the pool or on disk. Retried if a page was stolen meanwhile,
+     * since the disk may then hold an uncommitted version.
+     */
+    private Page committedCopy(PageId pid) throws DbException {
+        while(true){
+            long steals=stealCount.get();
+            Page page=stolenBeforeImages.get(pid);//磁盘上是被淘汰的未提交版本
+            if(page==null)
+                page=bufferpool.get(pid);
+            if(page==null){
+                DbFile file=Database.getCatalog().tables.get(pid.getTableId()).file;
+                page=file.readPage(pid);
+                if(stealCount.get()!=steals)
+                    continue;
+                if(bufferpool.size()>=numPages) evictPage();
+                Page cached=bufferpool.putIfAbsent(pid,page);
+                if(cached!=null)
+                    page=cached;
+            }
+            Page copy=page.getBeforeImage();
+            if(stealCount.get()==steals)
+                return copy;
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -331,22 +734,88 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
+        if(readOnlyTransactions.remove(tid)!=null)
+            return;//只读事务没有锁也没有脏页
+        recordWriteSet(tid);
         if(commit){
-            flushPages(tid);
+            if(noForce)
+                retainCommittedPages(tid);
+            else
+                flushPages(tid);
+            refreshBeforeImages(tid);
         }
         ArrayList<PageId>curLockList=lockManager.transactionLocks.get(tid);
         if(curLockList!=null) {
             for (int i = 0; i < curLockList.size(); i++) {
-                Page curPage = bufferpool.get(curLockList.get(i));
+                PageId pid = curLockList.get(i);
+                Page curPage = bufferpool.get(pid);
                 if (curPage != null) {
                     if (curPage.isDirty() != null) {
                         curPage.markDirty(false, null);
-                        discardPage(curLockList.get(i));
+                        if (committedDirty.contains(pid))
+                            bufferpool.put(pid, curPage.getBeforeImage());//磁盘上还没有已提交的版本, 不能丢弃
+                        else
+                            discardPage(pid);
                     }
                 }
+                stolenBeforeImages.remove(pid);
             }
         }
         lockManager.releaseAllLocks(tid);
+        endOptimistic(tid);
+    }
+
+    /**
+     * NO-FORCE commit: the pages tid dirtied stay in the pool as committed
+     * pages not yet on disk. Their updates were logged by {@link #logPages}.
+     */
+    private void retainCommittedPages(TransactionId tid){
+        poolLatch.lock();
+        try {
+            ArrayList<PageId> curLockList=lockManager.transactionLocks.get(tid);
+            if(curLockList==null)
+                return;
+            for(PageId pid:new ArrayList<>(curLockList)){
+                Page page=bufferpool.get(pid);
+                if(page!=null&&page.isDirty()!=null){
+                    page.markDirty(false,null);
+                    committedDirty.add(pid);
+                }
+            }
+        } finally {
+            poolLatch.unlock();
+        }
+    }
+
+    /**
+     * After a commit the pages tid locked are the new committed versions; make
+     * them the before images read-only transactions see, and publish them as a
+     * new commit version. Each page is stamped with the version before its
+     * before image changes, so a read-only transaction whose snapshot is older
+     * never accepts the new image.
+     */
+    private void refreshBeforeImages(TransactionId tid){
+        ArrayList<PageId> curLockList=lockManager.transactionLocks.get(tid);
+        if(curLockList==null)
+            return;
+        publishLatch.lock();
+        try {
+            long version=commitVersion.get()+1;
+            for(PageId pid:new ArrayList<>(curLockList)){
+                Lock lock=lockManager.pageLocks.get(pid);
+                if(lock!=null&&lock.getType()==LockType.Excluscive){
+                    pageVersions.put(pid,version);
+                    Page page=bufferpool.get(pid);
+                    if(page!=null)
+                        page.setBeforeImage();
+                    stolenBeforeImages.remove(pid);//磁盘上被淘汰的版本现在已提交
+                }
+                flushedUncommitted.remove(pid);
+            }
+            commitVersion.set(version);
+        } finally {
+            publishLatch.unlock();
+        }
     }
 
     /**
@@ -360,6 +829,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * Adds the entries of the tuple to the secondary indexes of the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -377,6 +848,9 @@ public class BufferPool {
                 bufferpool.put(page.getId(), page);
             }
         }
+        // 维护该表上的二级索引，t的RecordId此时已指向插入位置
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insertEntry(tid, t);
     }
 
     /**
@@ -389,6 +863,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * Removes the entries of the tuple from the secondary indexes of its table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -406,6 +882,9 @@ public class BufferPool {
                 bufferpool.put(page.getId(), page);
             }
         }
+        // 删除二级索引中指向该元组的项
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(pageId.getTableId()))
+            index.deleteEntry(tid, t);
     }
 
     /**
@@ -413,11 +892,12 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        for(Map.Entry<PageId,Page>entry:bufferpool.entrySet()){
-            PageId flush_pid=entry.getKey();
-            Page flush_page=entry.getValue();
-            flushPage(flush_pid);
+    public void flushAllPages() throws IOException {
+        poolLatch.lock();
+        try {
+            writeDirtyPages(new ArrayList<>(bufferpool.keySet()));
+        } finally {
+            poolLatch.unlock();
         }
     }
 
@@ -429,33 +909,170 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
-        bufferpool.remove(pid);
+    public void discardPage(PageId pid) {
+        poolLatch.lock();
+        try {
+            bufferpool.remove(pid);
+            flushedUncommitted.remove(pid);
+            committedDirty.remove(pid);
+        } finally {
+            poolLatch.unlock();
+        }
+    }
+
+    /**
+     * Acquire the buffer pool latch, which serializes page flushes and
+     * evictions. The log file takes it before its own latch whenever it needs
+     * to touch buffer pool pages; see {@link LogFile}. Must be paired with
+     * {@link #unlatch()}.
+     */
+    void latch() {
+        poolLatch.lock();
+    }
+
+    void unlatch() {
+        poolLatch.unlock();
+    }
+
+    /**
+     * Called by the log, under its latch, when an update to pid is appended
+     * at offset lsn. The page stays in the dirty page table until
+     * {@link #pageWritten} reports that the update reached disk.
+     */
+    void pageLogged(PageId pid, long lsn) {
+        dirtyPageTable.putIfAbsent(pid, lsn);
+    }
+
+    void pageWritten(PageId pid) {
+        dirtyPageTable.remove(pid);
+    }
+
+    /**
+     * @return a snapshot of the dirty page table: every page with logged
+     * updates that may not be on disk yet, mapped to the offset of the
+     * oldest such update
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        DbFile dbFile=Database.getCatalog().tables.get(pid.getTableId()).file;
-        Page page=bufferpool.get(pid);
-        if(page!=null) {
-            if (page.isDirty() != null) {
+    private void flushPage(PageId pid) throws IOException {
+        writeDirtyPages(Collections.singletonList(pid));
+    }
+
+    /**
+     * Write the dirty pages among pids to disk, following the write-ahead rule:
+     * an update record for every page is logged and the log forced once before
+     * any of the pages is written.
+     */
+    private void writeDirtyPages(List<PageId> pids) throws IOException {
+        poolLatch.lock();
+        try {
+            List<Page> dirtyPages=logDirtyPages(pids);
+            if(!dirtyPages.isEmpty())
+                Database.getLogFile().force();
+            for(Page page:dirtyPages){
+                DbFile dbFile=Database.getCatalog().tables.get(page.getId().getTableId()).file;
                 dbFile.writePage(page);
                 page.markDirty(false, null);
+                flushedUncommitted.add(page.getId());
+                committedDirty.remove(page.getId());
+                pageWritten(page.getId());
+            }
+            //NO-FORCE留下的已提交页, 其日志在提交时已经落盘
+            for(PageId pid:pids){
+                if(committedDirty.contains(pid))
+                    writeCommittedPage(pid);
             }
+        } finally {
+            poolLatch.unlock();
+        }
+    }
+
+    /**
+     * Log an update record for every page among pids that a running
+     * transaction dirtied, without forcing the log or writing the pages.
+     * @return the pages logged
+     */
+    private List<Page> logDirtyPages(List<PageId> pids) throws IOException {
+        ArrayList<Page> dirtyPages=new ArrayList<>();
+        for(PageId pid:pids){
+            Page page=bufferpool.get(pid);
+            if(page!=null&&page.isDirty()!=null){
+                //日志记录相对磁盘上的版本, 重做时才能逐条恢复每次写回
+                Page before=flushedUncommitted.contains(pid)
+                        ?Database.getCatalog().tables.get(pid.getTableId()).file.readPage(pid)
+                        :page.getBeforeImage();
+                Database.getLogFile().logWrite(page.isDirty(),before,page);
+                dirtyPages.add(page);
+            }
+        }
+        return dirtyPages;
+    }
+
+    /**
+     * NO-FORCE commit, first step: log the updates of every page tid
+     * dirtied. The commit record that follows forces them along with it.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        poolLatch.lock();
+        try {
+            ArrayList<PageId>curLockList=lockManager.transactionLocks.get(tid);
+            if(curLockList!=null)
+                logDirtyPages(new ArrayList<>(curLockList));
+        } finally {
+            poolLatch.unlock();
+        }
+    }
+
+    /**
+     * Write back committed pages that NO-FORCE commits left in the pool,
+     * skipping pages a running transaction holds exclusively. Run
+     * periodically by the background page writer.
+     */
+    void writeCommittedPages() throws IOException {
+        if(committedDirty.isEmpty())
+            return;
+        poolLatch.lock();
+        try {
+            for(PageId pid:new ArrayList<>(committedDirty))
+                writeCommittedPage(pid);
+        } finally {
+            poolLatch.unlock();
+        }
+    }
+
+    /** @return true if the page was written */
+    private boolean writeCommittedPage(PageId pid) throws IOException {
+        Page page=bufferpool.get(pid);
+        if(page==null){
+            committedDirty.remove(pid);
+            return false;
         }
+        byte[] data=lockManager.copyUnlessExclusive(pid,page);
+        if(data==null)
+            return false;
+        Database.getCatalog().tables.get(pid.getTableId()).file.writePage(new LogFile.RawPage(pid,data));
+        committedDirty.remove(pid);
+        pageWritten(pid);
+        return true;
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        ArrayList<PageId>curLockList=lockManager.transactionLocks.get(tid);
-        if(curLockList!=null) {
-            for (int i = 0; i < curLockList.size(); i++) {
-                flushPage(curLockList.get(i));
+    public void flushPages(TransactionId tid) throws IOException {
+        poolLatch.lock();
+        try {
+            ArrayList<PageId>curLockList=lockManager.transactionLocks.get(tid);
+            if(curLockList!=null) {
+                writeDirtyPages(new ArrayList<>(curLockList));
             }
+        } finally {
+            poolLatch.unlock();
         }
     }
 
@@ -463,20 +1080,58 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
-        boolean flag=false;
-        for(Map.Entry<PageId,Page>entry:bufferpool.entrySet()) {
-            PageId evict_pid = entry.getKey();
-            Page evict_page = entry.getValue();
-            if (evict_page.isDirty() == null) {
-                //flushPage(evict_pid);
-                discardPage(evict_pid);
-                flag=true;
-                break;
+    private void evictPage() throws DbException {
+        poolLatch.lock();
+        try {
+            boolean flag=false;
+            for(Map.Entry<PageId,Page>entry:bufferpool.entrySet()) {
+                PageId evict_pid = entry.getKey();
+                Page evict_page = entry.getValue();
+                if (evict_page.isDirty() == null && !committedDirty.contains(evict_pid)) {
+                    //flushPage(evict_pid);
+                    discardPage(evict_pid);
+                    flag=true;
+                    break;
+                }
+            }
+            //没有干净页时写回一个已提交的页再淘汰
+            for(PageId evict_pid:new ArrayList<>(committedDirty)) {
+                if(flag)
+                    break;
+                Page evict_page=bufferpool.get(evict_pid);
+                try {
+                    if(evict_page!=null&&evict_page.isDirty()==null&&writeCommittedPage(evict_pid)) {
+                        discardPage(evict_pid);
+                        flag=true;
+                    }
+                } catch (IOException e) {
+                    throw new DbException("could not write back page "+evict_pid+": "+e.getMessage());
+                }
+            }
+            //STEAL: 先写日志再把未提交的脏页写回并淘汰
+            if(!flag&&steal) {
+                for (Map.Entry<PageId, Page> entry : bufferpool.entrySet()) {
+                    PageId evict_pid = entry.getKey();
+                    Page evict_page = entry.getValue();
+                    if (evict_page.isDirty() != null) {
+                        stolenBeforeImages.putIfAbsent(evict_pid, evict_page.getBeforeImage());
+                        stealCount.incrementAndGet();
+                        try {
+                            writeDirtyPages(Collections.singletonList(evict_pid));
+                        } catch (IOException e) {
+                            throw new DbException("could not steal page "+evict_pid+": "+e.getMessage());
+                        }
+                        discardPage(evict_pid);
+                        flag=true;
+                        break;
+                    }
+                }
             }
+            if(!flag)
+                throw new DbException("No page can be evicted!");
+        } finally {
+            poolLatch.unlock();
         }
-        if(!flag)
-            throw new DbException("No page can be evicted!");
     }
 
 }
@@ -3,9 +3,12 @@ package simpledb;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -30,12 +33,15 @@ public class Catalog {
         }
     }
     Map<Integer,Table>tables;//此处不能用int
+    Map<Integer,List<SecondaryIndex>>indexes;
+    private volatile File schemaFile;//loadSchema读入的目录文件, 新建的索引追加到其中
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
         tables=new LinkedHashMap<>();
+        indexes=new ConcurrentHashMap<>();
     }
 
     /**
@@ -132,13 +138,74 @@ public class Catalog {
         else throw new NoSuchElementException();
     }
     
+    /**
+     * Add a secondary index to the catalog. Its file is added as a table named
+     * after the index, and the index is kept up to date by
+     * BufferPool.insertTuple and deleteTuple on its base table from now on.
+     * If the catalog was read by {@link #loadSchema} and the index is stored
+     * in the file name.idx next to the catalog file, a CREATE INDEX line is
+     * appended to the catalog file, so that the index is opened again the next
+     * time the schema is loaded.
+     * @param index the index to add
+     * @throws IllegalArgumentException if a table or index with the same name exists
+     */
+    public void addIndex(SecondaryIndex index) {
+        registerIndex(index);
+        File schema = schemaFile;
+        if (schema != null && index.getFile().getFile().getAbsoluteFile().equals(
+                new File(schema.getAbsoluteFile().getParentFile(), index.getName() + ".idx"))) {
+            TupleDesc td = getTupleDesc(index.getTableId());
+            String[] columns = new String[index.getFields().length];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = td.getFieldName(index.getFields()[i]);
+            try (FileWriter w = new FileWriter(schema, true)) {
+                w.write("CREATE INDEX " + index.getName() + " ON " + getTableName(index.getTableId())
+                        + " (" + String.join(", ", columns) + ")\n");
+            } catch (IOException e) {
+                throw new RuntimeException("could not record index " + index.getName() + " in " + schema, e);
+            }
+        }
+    }
+
+    private void registerIndex(SecondaryIndex index) {
+        for (Table table : tables.values())
+            if (table.name.equals(index.getName()))
+                throw new IllegalArgumentException("table or index " + index.getName() + " already exists");
+        addTable(index.getFile(), index.getName());
+        indexes.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, which may be empty
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> list = indexes.get(tableid);
+        return list == null ? Collections.<SecondaryIndex>emptyList() : list;
+    }
+
+    /**
+     * Returns a secondary index on the specified field of a table alone, or
+     * null if the field has no such index
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid))
+            if (index.getFields().length == 1 && index.getField() == field)
+                return index;
+        return null;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         tables.clear();
+        indexes.clear();
+        schemaFile = null;
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Lines of the form CREATE INDEX name ON table (column, ...) open the
+     * secondary index stored in name.idx; they must follow the line of their table.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -148,6 +215,18 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
+                Matcher m = Parser.CREATE_INDEX.matcher(line);
+                if (m.matches()) {
+                    String name = m.group(1);
+                    int tableId = getTableId(m.group(2));
+                    String[] columns = m.group(3).split("\\s*,\\s*");
+                    int[] fields = new int[columns.length];
+                    for (int i = 0; i < columns.length; i++)
+                        fields[i] = getTupleDesc(tableId).fieldNameToIndex(columns[i]);
+                    registerIndex(new SecondaryIndex(name, tableId, fields, new File(baseFolder+"/"+name + ".idx")));
+                    System.out.println("Added index : " + name + " on " + m.group(2));
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -186,10 +265,11 @@ public class Catalog {
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
+        schemaFile = new File(catalogFile);
     }
 }
 
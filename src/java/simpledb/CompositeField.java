@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the key of a B+ tree over several fields, as
+ * an ordered list of field values compared lexicographically.
+ * <p>
+ * Two composite fields are compared on the fields they both have, so a key
+ * of only the leading fields of an index (a prefix) compares equal to every
+ * key that starts with it. This lets an index over (a, b) be searched for
+ * all keys with a given value of a.
+ *
+ * @see BTreeFile#BTreeFile(File, int[], TupleDesc)
+ * @see IndexPredicate
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of the fields of this key, most significant first.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of fields in this key
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th field of this key
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the key of the first n fields of this key
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    /**
+     * Compare this key to another one on the fields both of them have.
+     * @return a negative number, zero or a positive number as this key is
+     *   less than, equal to or greater than val
+     */
+    public int compareTo(CompositeField val) {
+        int n = Math.min(fields.length, val.fields.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, val.fields[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, val.fields[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Write the fields of this key one after the other
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare the specified key to this key, on the fields both keys have.
+     * Return semantics are as specified by Field.compare
+     *
+     * @throws IllegalCastException if val is not a CompositeField
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int c = compareTo((CompositeField) val);
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return c == 0;
+        case NOT_EQUALS:
+            return c != 0;
+        case GREATER_THAN:
+            return c > 0;
+        case GREATER_THAN_OR_EQ:
+            return c >= 0;
+        case LESS_THAN:
+            return c < 0;
+        case LESS_THAN_OR_EQ:
+            return c <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of the leading field of this key. A composite key has no
+     * Type of its own; its size is given by {@link #getLen}.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+
+    /**
+     * The key of a tuple on the given fields: the field itself if there is
+     * only one, a CompositeField otherwise.
+     */
+    public static Field getKey(Tuple t, int[] keyFields) {
+        if (keyFields.length == 1)
+            return t.getField(keyFields[0]);
+        Field[] fields = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            fields[i] = t.getField(keyFields[i]);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * @return the number of bytes taken by a key on the given fields of td
+     */
+    public static int getLen(TupleDesc td, int[] keyFields) {
+        int len = 0;
+        for (int f : keyFields)
+            len += td.getFieldType(f).getLen();
+        return len;
+    }
+
+    /**
+     * Read a key on the given fields of td, as written by serialize
+     */
+    public static Field parse(TupleDesc td, int[] keyFields, DataInputStream dis)
+            throws java.text.ParseException {
+        if (keyFields.length == 1)
+            return td.getFieldType(keyFields[0]).parse(dis);
+        Field[] fields = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * @return true if f can be a key on the given fields of td
+     */
+    public static boolean isKey(Field f, TupleDesc td, int[] keyFields) {
+        if (keyFields.length == 1)
+            return f.getType().equals(td.getFieldType(keyFields[0]));
+        if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length)
+            return false;
+        for (int i = 0; i < keyFields.length; i++)
+            if (!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i])))
+                return false;
+        return true;
+    }
+}
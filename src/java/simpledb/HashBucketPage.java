@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashBucketPage holds the tuples of one bucket of an extendible hash file.
+ * Buckets which cannot be split any further continue on overflow pages,
+ * which are bucket pages themselves.
+ * <p>
+ * The format of the page is an int for the local depth of the bucket, an
+ * int for the page number of the next overflow page (0 if there is none),
+ * and then a header bitmap and tuple slots laid out as in a HeapPage.
+ *
+ * @see HashFile
+ * @see HeapPage
+ */
+public class HashBucketPage implements Page {
+
+	private static final int INDEX_SIZE = 4;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final int numSlots;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private int localDepth;
+	private int overflow;
+
+	private byte[] oldData;
+	private final Byte oldDataLock = new Byte((byte) 0);
+
+	public HashBucketPage(HashPageId id, byte[] data, TupleDesc td) throws IOException {
+		this.pid = id;
+		this.td = td;
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		overflow = dis.readInt();
+		header = new byte[(numSlots + 7) / 8];
+		dis.readFully(header);
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i = 0; i < numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					dis.skipBytes(td.getSize());
+					continue;
+				}
+				Tuple t = new Tuple(td);
+				t.setRecordId(new RecordId(pid, i));
+				for (int j = 0; j < td.numFields(); j++)
+					t.setField(j, td.getFieldType(j).parse(dis));
+				tuples[i] = t;
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error: " + e);
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples of a table with tuple descriptor td that fit on a bucket page
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		return ((BufferPool.getPageSize() - 2 * INDEX_SIZE) * 8) / (td.getSize() * 8 + 1);
+	}
+
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the page number of the next overflow page of this bucket, or 0 if there is none
+	 */
+	public int getOverflow() {
+		return overflow;
+	}
+
+	public void setOverflow(int overflow) {
+		this.overflow = overflow;
+	}
+
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (1 << (i % 8));
+		else
+			header[i / 8] &= ~(1 << (i % 8));
+	}
+
+	public int getNumEmptySlots() {
+		int empty = 0;
+		for (int i = 0; i < numSlots; i++)
+			if (!isSlotUsed(i))
+				empty++;
+		return empty;
+	}
+
+	/**
+	 * Adds a tuple to the first empty slot of the page and updates its RecordId.
+	 * @throws DbException if the page is full or the tuple does not match the page
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or its slot is already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page");
+		int i = rid.getTupleNumber();
+		if (i < 0 || i >= numSlots || !isSlotUsed(i))
+			throw new DbException("tried to delete null tuple");
+		markSlotUsed(i, false);
+		tuples[i] = null;
+	}
+
+	/**
+	 * Remove all tuples from the page
+	 * @return the removed tuples
+	 */
+	public List<Tuple> clear() {
+		List<Tuple> removed = new ArrayList<Tuple>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				removed.add(tuples[i]);
+				markSlotUsed(i, false);
+				tuples[i] = null;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> list = new ArrayList<Tuple>();
+		for (int i = 0; i < numSlots; i++)
+			if (isSlotUsed(i))
+				list.add(tuples[i]);
+		return Collections.unmodifiableList(list).iterator();
+	}
+
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(overflow);
+			dos.write(header);
+			for (int i = 0; i < numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the data of an empty bucket page with the given local depth
+	 */
+	public static byte[] createEmptyPageData(int localDepth) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		data[3] = (byte) localDepth;
+		return data;
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		return dirty ? dirtier : null;
+	}
+
+	/** Return a view of this page before it was modified
+		-- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef, td);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage is the directory of an extendible hash file, stored in
+ * page 0 of the file. It maps the low globalDepth bits of the hash of a key
+ * to the page number of the bucket holding the key; several entries share a
+ * bucket whose local depth is below the global depth.
+ * <p>
+ * The format of the page is an int for the global depth followed by
+ * 2^globalDepth ints for the bucket page numbers, so the global depth is
+ * bounded by the page size.
+ *
+ * @see HashFile
+ */
+public class HashDirectoryPage implements Page {
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private int globalDepth;
+	private int[] buckets;
+
+	private byte[] oldData;
+	private final Byte oldDataLock = new Byte((byte) 0);
+
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		globalDepth = dis.readInt();
+		if (globalDepth < 0 || globalDepth > getMaxDepth())
+			throw new IOException("invalid global depth " + globalDepth);
+		buckets = new int[1 << globalDepth];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = dis.readInt();
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the largest global depth whose directory fits on a page
+	 */
+	public static int getMaxDepth() {
+		int entries = (BufferPool.getPageSize() - 4) / 4;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * @return the page number of the bucket for a hash value
+	 */
+	public int getBucket(int hash) {
+		return buckets[hash & ((1 << globalDepth) - 1)];
+	}
+
+	/**
+	 * @return the page number stored in directory entry i
+	 */
+	public int getEntry(int i) {
+		return buckets[i];
+	}
+
+	public void setEntry(int i, int pgNo) {
+		buckets[i] = pgNo;
+	}
+
+	/**
+	 * @return the number of entries of the directory, 2^globalDepth
+	 */
+	public int getNumEntries() {
+		return buckets.length;
+	}
+
+	/**
+	 * Double the directory by incrementing the global depth. Each new entry
+	 * points to the same bucket as the entry it differs from in the new top bit.
+	 * @throws DbException if the directory would no longer fit on the page
+	 */
+	public void doubleDirectory() throws DbException {
+		if (globalDepth == getMaxDepth())
+			throw new DbException("hash directory is full");
+		int[] doubled = new int[buckets.length * 2];
+		System.arraycopy(buckets, 0, doubled, 0, buckets.length);
+		System.arraycopy(buckets, 0, doubled, buckets.length, buckets.length);
+		buckets = doubled;
+		globalDepth++;
+	}
+
+	/**
+	 * @return the data of a directory of depth 0 pointing to the bucket on page 1
+	 */
+	public static byte[] createInitialPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		data[7] = 1;
+		return data;
+	}
+
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			for (int b : buckets)
+				dos.writeInt(b);
+			dos.write(new byte[BufferPool.getPageSize() - 4 - 4 * buckets.length]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		return dirty ? dirtier : null;
+	}
+
+	/** Return a view of this page before it was modified
+		-- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+}
@@ -0,0 +1,474 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * HashFile is an implementation of a DbFile that stores tuples in an
+ * extendible hash table on one key field, for equality lookups that touch
+ * only the directory page and the bucket of the key.
+ * <p>
+ * Page 0 of the file is a HashDirectoryPage, and every other page is a
+ * HashBucketPage. When a bucket fills up it is split in two on the next bit
+ * of the hash, doubling the directory if the bucket was already as deep as
+ * the directory. A bucket whose tuples all have the same key, or which can
+ * no longer be split because the directory fills its page, continues on an
+ * overflow page instead. Buckets are never merged.
+ * <p>
+ * Like BTreeFile, the directory is only locked while looking up a bucket,
+ * and is locked with read-write permission only to split a bucket.
+ *
+ * @see HashDirectoryPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file
+	 * @param key - the field which the file is hashed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	public int getId() {
+		return tableid;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * The hash of a key. The bits of Field.hashCode() are mixed, since the
+	 * directory is indexed by the low bits and IntField hashes to its value.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				raf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			if (id.isDirectory())
+				return new HashDirectoryPage(id, data);
+			return new HashBucketPage(id, data, td);
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Read past end of table");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the directory.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page, which
+	 * works like BTreeFile.getPage(): pages fetched with read-write permission
+	 * are kept in dirtypages so that they are updated in one place.
+	 */
+	private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid))
+			return dirtypages.get(pid);
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE)
+			dirtypages.put(pid, p);
+		return p;
+	}
+
+	private HashBucketPage getBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgNo,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		return (HashBucketPage) getPage(tid, dirtypages, new HashPageId(tableid, pgNo), perm);
+	}
+
+	/**
+	 * Lock and return the directory page, creating the file with an empty
+	 * bucket if it does not exist yet.
+	 */
+	HashDirectoryPage getDirectory(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		synchronized (this) {
+			if (f.length() == 0) {
+				try {
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(f, true));
+					out.write(HashDirectoryPage.createInitialPageData());
+					out.write(HashBucketPage.createEmptyPageData(0));
+					out.close();
+				} catch (IOException e) {
+					throw new DbException("unable to create hash file: " + e);
+				}
+			}
+		}
+		return (HashDirectoryPage) getPage(tid, dirtypages, new HashPageId(tableid, 0), perm);
+	}
+
+	/**
+	 * Find and lock the bucket for a key. The directory is only locked for the
+	 * lookup, unless the transaction held or updated it before.
+	 */
+	private HashBucketPage findBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, Field key,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		HashPageId dirId = new HashPageId(tableid, 0);
+		boolean dirHeld = Database.getBufferPool().holdsLock(tid, dirId);
+		HashDirectoryPage dir = getDirectory(tid, dirtypages, Permissions.READ_ONLY);
+		HashBucketPage bucket = getBucket(tid, dirtypages, dir.getBucket(hash(key)), perm);
+		if (!dirHeld && !dirtypages.containsKey(dirId))
+			Database.getBufferPool().releasePage(tid, dirId);
+		return bucket;
+	}
+
+	/**
+	 * Find a page with an empty slot in the overflow chain starting at bucket
+	 * @return the page, or null if the whole chain is full
+	 */
+	private HashBucketPage findSpace(TransactionId tid, HashMap<PageId, Page> dirtypages, HashBucketPage bucket)
+			throws DbException, TransactionAbortedException {
+		HashBucketPage p = bucket;
+		while (true) {
+			if (p.getNumEmptySlots() > 0)
+				return p;
+			if (p.getOverflow() == 0)
+				return null;
+			p = getBucket(tid, dirtypages, p.getOverflow(), Permissions.READ_WRITE);
+		}
+	}
+
+	/**
+	 * Append an empty bucket page with the given local depth to the file
+	 */
+	private HashBucketPage newBucketPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int localDepth)
+			throws DbException, IOException, TransactionAbortedException {
+		int pgNo;
+		synchronized (this) {
+			pgNo = numPages();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(f, true));
+			out.write(HashBucketPage.createEmptyPageData(localDepth));
+			out.close();
+		}
+		return getBucket(tid, dirtypages, pgNo, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Add an overflow page to the end of the chain starting at bucket
+	 */
+	private HashBucketPage addOverflowPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashBucketPage bucket)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage last = bucket;
+		while (last.getOverflow() != 0)
+			last = getBucket(tid, dirtypages, last.getOverflow(), Permissions.READ_WRITE);
+		HashBucketPage page = newBucketPage(tid, dirtypages, bucket.getLocalDepth());
+		last.setOverflow(page.getId().getPageNumber());
+		return page;
+	}
+
+	/**
+	 * Split a full bucket on bit localDepth of the hash, doubling the directory
+	 * first if needed. The tuples of the whole chain are redistributed between
+	 * the chain, whose pages are reused, and a new bucket.
+	 *
+	 * @return false if the bucket cannot be split, because its tuples all have
+	 *         the given key or the directory is full
+	 */
+	private boolean splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashDirectoryPage dir,
+			HashBucketPage bucket, Field key) throws DbException, IOException, TransactionAbortedException {
+		int depth = bucket.getLocalDepth();
+		if (depth == dir.getGlobalDepth() && depth == HashDirectoryPage.getMaxDepth())
+			return false;
+
+		ArrayList<HashBucketPage> chain = new ArrayList<HashBucketPage>();
+		boolean sameKey = true;
+		for (HashBucketPage p = bucket; ; p = getBucket(tid, dirtypages, p.getOverflow(), Permissions.READ_WRITE)) {
+			chain.add(p);
+			Iterator<Tuple> it = p.iterator();
+			while (sameKey && it.hasNext())
+				sameKey = it.next().getField(keyField).equals(key);
+			if (p.getOverflow() == 0)
+				break;
+		}
+		if (sameKey)
+			return false;
+
+		if (depth == dir.getGlobalDepth())
+			dir.doubleDirectory();
+		HashBucketPage sibling = newBucketPage(tid, dirtypages, depth + 1);
+		int pgNo = bucket.getId().getPageNumber();
+		for (int i = 0; i < dir.getNumEntries(); i++)
+			if (dir.getEntry(i) == pgNo && (i & (1 << depth)) != 0)
+				dir.setEntry(i, sibling.getId().getPageNumber());
+		for (HashBucketPage p : chain)
+			p.setLocalDepth(depth + 1);
+
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		for (HashBucketPage p : chain)
+			moved.addAll(p.clear());
+		for (Tuple t : moved) {
+			HashBucketPage head = (hash(t.getField(keyField)) & (1 << depth)) != 0 ? sibling : bucket;
+			HashBucketPage target = findSpace(tid, dirtypages, head);
+			if (target == null)
+				target = addOverflowPage(tid, dirtypages, head);
+			target.insertTuple(t);
+		}
+		return true;
+	}
+
+	/**
+	 * Insert a tuple into the bucket of its key, splitting the bucket or
+	 * adding an overflow page if the bucket is full.
+	 *
+	 * @return the pages that were dirtied, including the directory if a bucket split
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Field key = t.getField(keyField);
+		HashBucketPage target = findSpace(tid, dirtypages, findBucket(tid, dirtypages, key, Permissions.READ_WRITE));
+		while (target == null) {
+			HashDirectoryPage dir = getDirectory(tid, dirtypages, Permissions.READ_WRITE);
+			HashBucketPage bucket = getBucket(tid, dirtypages, dir.getBucket(hash(key)), Permissions.READ_WRITE);
+			if (!splitBucket(tid, dirtypages, dir, bucket, key)) {
+				target = addOverflowPage(tid, dirtypages, bucket);
+				break;
+			}
+			bucket = getBucket(tid, dirtypages, dir.getBucket(hash(key)), Permissions.READ_WRITE);
+			target = findSpace(tid, dirtypages, bucket);
+		}
+		target.insertTuple(t);
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		for (Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+			dirtyPagesArr.add(p);
+		}
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Delete a tuple from the page its RecordId points to. Pages are not
+	 * reclaimed and buckets are never merged.
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+			throw new DbException("tried to delete tuple from another table");
+		HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+				Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		page.markDirty(true, tid);
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.add(page);
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Get a read lock on the directory page and return an iterator over all
+	 * bucket pages in page order.
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid);
+	}
+
+	/**
+	 * Return an iterator over the tuples whose key field satisfies ipred. An
+	 * equality predicate only reads the directory and the bucket of its key;
+	 * other predicates scan and filter the whole file, as a hash file keeps
+	 * no order.
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getOp() == Op.EQUALS)
+			return new HashSearchIterator(this, tid, ipred.getField());
+		DbFileIterator it = iterator(tid);
+		return new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				it.open();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (ipred.matches(t.getField(keyField)))
+						return t;
+				}
+				return null;
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				close();
+				it.rewind();
+			}
+
+			public void close() {
+				super.close();
+				it.close();
+			}
+		};
+	}
+
+	/**
+	 * Find and lock the first page of the bucket of a key, for HashSearchIterator
+	 */
+	HashBucketPage findBucket(TransactionId tid, Field key) throws DbException, TransactionAbortedException {
+		return findBucket(tid, new HashMap<PageId, Page>(), key, Permissions.READ_ONLY);
+	}
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HashFile,
+ * reading the bucket pages in page order
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private Iterator<Tuple> it = null;
+	private int pgNo;
+	private int numPages;
+
+	public HashFileIterator(HashFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		// locking the directory keeps buckets from being split during the scan
+		f.getDirectory(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY);
+		numPages = f.numPages();
+		pgNo = 0;
+		it = Collections.<Tuple>emptyList().iterator();
+	}
+
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		if (it == null)
+			return null;
+		while (!it.hasNext()) {
+			if (++pgNo >= numPages)
+				return null;
+			it = ((HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), pgNo), Permissions.READ_ONLY)).iterator();
+		}
+		return it.next();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
+
+/**
+ * Helper class that implements the equality search of a HashFile, reading
+ * the overflow chain of the bucket of the key
+ */
+class HashSearchIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final Field key;
+	private Iterator<Tuple> it = null;
+	private HashBucketPage curp = null;
+
+	public HashSearchIterator(HashFile f, TransactionId tid, Field key) {
+		this.f = f;
+		this.tid = tid;
+		this.key = key;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		curp = f.findBucket(tid, key);
+		it = curp.iterator();
+	}
+
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).equals(key))
+					return t;
+			}
+			if (curp.getOverflow() == 0) {
+				it = null;
+				return null;
+			}
+			curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), curp.getOverflow()), Permissions.READ_ONLY);
+			it = curp.iterator();
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+/**
+ * Unique identifier for the pages of a HashFile. Page 0 of a HashFile is its
+ * directory page and every other page is a bucket page.
+ *
+ * @see HashFile
+ */
+public class HashPageId implements PageId {
+
+	private final int tableId;
+	private final int pgNo;
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific hash file.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param pgNo The page number in that table.
+	 */
+	public HashPageId(int tableId, int pgNo) {
+		this.tableId = tableId;
+		this.pgNo = pgNo;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the page number in the table getTableId() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return whether this is the id of the directory page of its file
+	 */
+	public boolean isDirectory() {
+		return pgNo == 0;
+	}
+
+	public int hashCode() {
+		return 31 * tableId + pgNo;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof HashPageId))
+			return false;
+		HashPageId p = (HashPageId) o;
+		return tableId == p.tableId && pgNo == p.pgNo;
+	}
+
+	public String toString() {
+		return "HashPageId(" + tableId + ", " + pgNo + ")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.
+	 */
+	public int[] serialize() {
+		return new int[] { tableId, pgNo };
+	}
+}
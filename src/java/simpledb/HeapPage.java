@@ -1,6 +1,5 @@
 package simpledb;
 
-import com.sun.deploy.security.SelectableSecurityManager;
 
 import java.util.*;
 import java.io.*;
@@ -327,6 +326,15 @@ public class HeapPage implements Page {
         else return false;
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -4,7 +4,21 @@ import java.io.Serializable;
 
 /**
  * IndexPredicate compares a field which has index on it against a given value
+ * <p>
+ * On an index keyed on several fields the value is a CompositeField of the
+ * leading key fields. An EQUALS predicate matches the keys starting with
+ * these fields; any other predicate matches the keys whose leading fields
+ * but the last are equal to those of the value, and whose next field
+ * compares to the last field of the value with the operator. So
+ * (GREATER_THAN, (5, 100)) on an index over (a, b) selects a = 5 and b &gt; 100.
+ * <p>
+ * A range predicate may have both a lower and an upper bound, so that index
+ * scans stop as soon as they pass the upper bound instead of filtering the
+ * rest of the index. The lower bound is then the operator and value of the
+ * predicate, and the upper bound its upper operator and value.
+ *
  * @see IndexOpIterator
+ * @see CompositeField
  */
 public class IndexPredicate implements Serializable {
 	
@@ -12,6 +26,8 @@ public class IndexPredicate implements Serializable {
 	
     private Predicate.Op op;
     private Field fieldvalue;
+    private Predicate.Op upperOp;
+    private Field upperValue;
 
     /**
      * Constructor.
@@ -27,6 +43,25 @@ public class IndexPredicate implements Serializable {
         this.fieldvalue = fvalue;
     }
 
+    /**
+     * Constructor for a range with both a lower and an upper bound.
+     *
+     * @param lowerOp Predicate.Op.GREATER_THAN or Predicate.Op.GREATER_THAN_OR_EQ
+     * @param lower The lower bound of the range
+     * @param upperOp Predicate.Op.LESS_THAN or Predicate.Op.LESS_THAN_OR_EQ
+     * @param upper The upper bound of the range
+     */
+    public IndexPredicate(Predicate.Op lowerOp, Field lower, Predicate.Op upperOp, Field upper) {
+        if (lowerOp != Predicate.Op.GREATER_THAN && lowerOp != Predicate.Op.GREATER_THAN_OR_EQ)
+            throw new IllegalArgumentException("not a lower bound: " + lowerOp);
+        if (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException("not an upper bound: " + upperOp);
+        this.op = lowerOp;
+        this.fieldvalue = lower;
+        this.upperOp = upperOp;
+        this.upperValue = upper;
+    }
+
     public Field getField() {
         return fieldvalue;
     }
@@ -35,6 +70,45 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /**
+     * @return the upper bound of a range with both bounds, null otherwise
+     */
+    public Field getUpperField() {
+        return upperValue;
+    }
+
+    /**
+     * @return the operator of the upper bound of a range with both bounds,
+     *   null otherwise
+     */
+    public Predicate.Op getUpperOp() {
+        return upperOp;
+    }
+
+    /**
+     * @return for a range predicate on a CompositeField of several fields,
+     *   the key of the fields which must be equal to those of the value;
+     *   null otherwise
+     */
+    public Field getPrefix() {
+        if (op == Predicate.Op.EQUALS || !(fieldvalue instanceof CompositeField))
+            return null;
+        CompositeField key = (CompositeField) fieldvalue;
+        return key.numFields() < 2 ? null : key.prefix(key.numFields() - 1);
+    }
+
+    /**
+     * @return true if the key of an index entry satisfies this predicate
+     */
+    public boolean matches(Field key) {
+        Field prefix = getPrefix();
+        if (prefix != null && !key.compare(Predicate.Op.EQUALS, prefix))
+            return false;
+        if (!key.compare(op, fieldvalue))
+            return false;
+        return upperValue == null || key.compare(upperOp, upperValue);
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -43,7 +117,9 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         if (ipd == null)
             return false;
-        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue));
+        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue)
+                && upperOp == ipd.upperOp
+                && (upperValue == null ? ipd.upperValue == null : upperValue.equals(ipd.upperValue)));
     }
 
 }
@@ -1,6 +1,5 @@
 package simpledb;
 
-import org.omg.PortableInterceptor.SYSTEM_EXCEPTION;
 
 import java.util.*;
 
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * LogBuffer is the in-memory tail of the log. Log records are appended to a
+ * chain of fixed-size direct ByteBuffers; the writer detaches the filled
+ * chunks and writes them to the log segments in one large sequential write,
+ * then hands them back for reuse.
+ * <p>
+ * LogBuffer is not thread safe; LogFile guards it with its latch.
+ */
+class LogBuffer extends OutputStream {
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 16;
+
+    private final int chunkSize;
+    private final ArrayList<ByteBuffer> filled = new ArrayList<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer current;
+    private long size = 0;
+
+    LogBuffer(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** @return the number of bytes appended since the last {@link #detach} */
+    long size() {
+        return size;
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || !current.hasRemaining())
+            nextChunk();
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining())
+                nextChunk();
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void nextChunk() {
+        current = pool.isEmpty() ? ByteBuffer.allocateDirect(chunkSize) : pool.poll();
+        filled.add(current);
+    }
+
+    /**
+     * Take every appended byte out of the buffer.
+     * @return the chunks, flipped for reading, in append order
+     */
+    List<ByteBuffer> detach() {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(filled);
+        for (ByteBuffer chunk : chunks)
+            chunk.flip();
+        filled.clear();
+        current = null;
+        size = 0;
+        return chunks;
+    }
+
+    /** Return chunks obtained from {@link #detach} once they have been written */
+    void recycle(List<ByteBuffer> chunks) {
+        for (ByteBuffer chunk : chunks) {
+            if (pool.size() >= MAX_POOLED_CHUNKS)
+                break;
+            chunk.clear();
+            pool.add(chunk);
+        }
+    }
+
+    /** Drop everything appended since the last {@link #detach} */
+    void clear() {
+        recycle(detach());
+    }
+}
@@ -3,7 +3,19 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +26,34 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
+Many of the methods here hold the log latch (to prevent concurrent log
+writes from happening); many of the methods in BufferPool hold the
+buffer pool latch (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+must take the buffer pool latch before the log latch:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    BufferPool bp = Database.getBufferPool();
+    bp.latch();
+    try {
+        latch.lock();
+        try {
 
-       ..
+        ..
 
-       }
+        } finally {
+            latch.unlock();
+        }
+    } finally {
+        bp.unlatch();
     }
 </pre>
+
+Both latches are java.util.concurrent locks rather than monitors, so a
+virtual thread blocked on log I/O does not pin its carrier thread.
 */
 
 /**
@@ -39,11 +61,13 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself only holds a long integer: the offset of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in fixed-size segment files next to it
+(see LogSegments), addressed by a global offset that never changes, so
+truncation deletes old segments without rewriting anything.  Log
+records are variable length and may span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -51,21 +75,36 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  Pages and page ids are written with a one byte type id from
+the PageCodec registry rather than a class name.
+
+<li>DELTA records are the compact form of UPDATE records, used when only
+a small part of the page changed: a serialized page id followed by the
+changed byte ranges with their before and after contents (see
+PageDelta).  Undo and redo apply them to the page currently on disk.
+
+<li>CLR (compensation) records are written while an update is undone,
+by rollback or by recovery.  They hold the offset of the undone record,
+followed by a page id and a delta like a DELTA record.  They are only
+ever redone, never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  The transaction table is followed by the
+dirty page table: an integer count, then a serialized page id and the
+offset of its oldest update not known to be on disk (its recLSN) for
+each page.  Checkpoints are fuzzy: no page is flushed to take one, so
+redo starts at the smallest recLSN rather than at the checkpoint.
 
 </ul>
 
@@ -74,7 +113,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,14 +121,57 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    final ReentrantLock latch = new ReentrantLock();
+    long currentOffset = -1;//protected by latch
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    int totalRecords = 0; // for PatchTest //protected by latch
+
+    // buffered tail of the log, protected by latch. Bytes before fileEnd
+    // are in the segment files, or being written to them by writeOut; the
+    // rest are in buffer, which out appends to.
+    final LogBuffer buffer = new LogBuffer(LogBuffer.DEFAULT_CHUNK_SIZE);
+    final DataOutputStream out = new DataOutputStream(buffer);
+    long fileEnd = 0;
+
+    // group commit state, protected by latch. Records are numbered in append
+    // order; a commit waits until a write + force covering its number has
+    // finished. Only one thread writes the buffer out at a time.
+    final Condition ioFinished = latch.newCondition();
+    long appendedRecords = 0;
+    long forcedRecords = 0;
+    boolean ioInProgress = false;
+    volatile long groupCommitDelayMicros = 0;
+
+    // asynchronous commits whose commit record is not forced yet, by record
+    // number, and when the oldest of them was appended. Protected by latch.
+    final TreeMap<Long, CompletableFuture<Void>> pendingCommits =
+        new TreeMap<Long, CompletableFuture<Void>>();
+    long oldestPendingCommitNanos = 0;
+    volatile long asyncCommitWindowMillis = DEFAULT_ASYNC_COMMIT_WINDOW_MILLIS;
+
+    /** Default bound on how long an asynchronous commit may stay unforced */
+    static final long DEFAULT_ASYNC_COMMIT_WINDOW_MILLIS = 20;
+
+    /** How often the background writer drains the log buffer */
+    static final long FLUSH_INTERVAL_MILLIS = 10;
+    /** Buffered bytes past which appenders wake the background writer early */
+    static final long FLUSH_THRESHOLD = 4 * LogBuffer.DEFAULT_CHUNK_SIZE;
+
+    private static final ScheduledExecutorService writer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-log-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
@@ -105,10 +187,27 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
+        fileEnd = segments.length();
         recoveryUndecided = true;
 
+        // the writer only keeps a weak reference, so a LogFile dropped by
+        // Database.reset() stops being drained once it is collected
+        final WeakReference<LogFile> self = new WeakReference<LogFile>(this);
+        writer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                LogFile log = self.get();
+                if (log == null)
+                    throw new IllegalStateException("log file closed"); // cancels the task
+                log.backgroundWrite();
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
                 // public void run() { shutdown(); }
@@ -125,18 +224,61 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendedRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.clear();
+            segments.reset();
+            fileEnd = segments.length();
+            currentOffset = logEnd();
         }
+        if (buffer.size() > FLUSH_THRESHOLD)
+            writer.execute(new Runnable() {
+                public void run() { backgroundWrite(); }
+            });
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** @return the offset in the log file the next appended byte will have.
+        Caller must hold the latch. */
+    long logEnd() {
+        return fileEnd + buffer.size();
+    }
+
+    /** Set how long the leader of a commit group waits for more committers
+        to join before forcing the log. 0 (the default) forces as soon as a
+        commit arrives; commits that arrive while that force runs still
+        share the next one.
+        @param micros the maximum delay, in microseconds
+    */
+    public void setGroupCommitDelay(long micros) {
+        groupCommitDelayMicros = micros;
+    }
+
+    public long getGroupCommitDelay() {
+        return groupCommitDelayMicros;
+    }
+
+    /** Set the durability window of asynchronous commits: the background
+        writer forces the log before an asynchronous commit record has been
+        unforced for longer than this.  A crash can lose the asynchronous
+        commits of the last window.
+        @param millis the window, in milliseconds
+    */
+    public void setAsyncCommitWindow(long millis) {
+        asyncCommitWindowMillis = millis;
+    }
+
+    public long getAsyncCommitWindow() {
+        return asyncCommitWindowMillis;
+    }
+
+    public int getTotalRecords() {
+        latch.lock();
+        try {
+            return totalRecords;
+        } finally {
+            latch.unlock();
+        }
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -144,27 +286,24 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        latch.lock();
+        try {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+            tidToFirstLogRecord.remove(tid.getId());
+            awaitForce(appendedRecords);
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -173,17 +312,152 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        latch.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+            tidToFirstLogRecord.remove(tid.getId());
+            awaitForce(appendedRecords);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Write a commit record without waiting for it to reach disk.  The
+        background writer forces it within the asynchronous commit window.
+        @return a future that completes once the commit record is durable
+    */
+    public CompletableFuture<Void> logCommitAsync(TransactionId tid) throws IOException {
+        latch.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT ASYNC " + tid.getId());
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+            tidToFirstLogRecord.remove(tid.getId());
+
+            CompletableFuture<Void> durable = new CompletableFuture<Void>();
+            if (pendingCommits.isEmpty())
+                oldestPendingCommitNanos = System.nanoTime();
+            pendingCommits.put(appendedRecords, durable);
+            return durable;
+        } finally {
+            latch.unlock();
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Wait until every record up to and including record number
+        <code>record</code> is on disk. The first waiter becomes the leader:
+        it optionally waits {@link #setGroupCommitDelay} for others to
+        append, then writes out the buffer and forces once for everyone
+        who appended meanwhile.  Caller must hold the latch.
+    */
+    void awaitForce(long record) throws IOException {
+        while (forcedRecords < record) {
+            if (ioInProgress) {
+                ioFinished.awaitUninterruptibly();
+                continue;
+            }
+            writeOut(true, groupCommitDelayMicros);
+        }
+    }
+
+    /** Write everything buffered so far to the log file, and force it if
+        requested. The latch is released during the delay and the I/O, so
+        other threads can keep appending. Caller must hold the latch and
+        no other write may be in progress.
+    */
+    private void writeOut(boolean force, long delayMicros) throws IOException {
+        ioInProgress = true;
+        try {
+            long nanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+            while (nanos > 0) {
+                try {
+                    nanos = ioFinished.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            long target = appendedRecords;
+            long position = fileEnd;
+            // the detached bytes keep their offsets: records appended
+            // during the I/O must follow them in logEnd()
+            fileEnd += buffer.size();
+            List<ByteBuffer> chunks = buffer.detach();
+            latch.unlock();
+            try {
+                segments.write(chunks, position);
+                if (force)
+                    segments.force();
+            } finally {
+                latch.lock();
+            }
+            buffer.recycle(chunks);
+            if (force) {
+                forcedRecords = Math.max(forcedRecords, target);
+                completeCommits();
+            }
+        } finally {
+            ioInProgress = false;
+            ioFinished.signalAll();
+        }
+    }
+
+    /** Complete the futures of the asynchronous commits covered by the last
+        force.  Caller must hold the latch. */
+    private void completeCommits() {
+        SortedMap<Long, CompletableFuture<Void>> done = pendingCommits.headMap(forcedRecords, true);
+        for (CompletableFuture<Void> durable : done.values())
+            durable.complete(null);
+        done.clear();
+        // the rest were appended while the force ran
+        if (!pendingCommits.isEmpty())
+            oldestPendingCommitNanos = System.nanoTime();
+    }
+
+    /** Drain the log buffer into the file; run periodically by the
+        background writer.  The log is forced as well when an asynchronous
+        commit would otherwise outlive its durability window before the
+        next run. */
+    void backgroundWrite() {
+        latch.lock();
+        try {
+            if (ioInProgress || !segments.isOpen())
+                return;
+            long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestPendingCommitNanos);
+            if (!pendingCommits.isEmpty() && age + FLUSH_INTERVAL_MILLIS >= asyncCommitWindowMillis)
+                writeOut(true, 0);
+            else if (buffer.size() > 0)
+                writeOut(false, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Wait until the whole log, including the buffered tail, is in the log
+        file, so that it can be read, rewritten or closed. Caller must hold
+        the latch; it holds it again, with nothing buffered, on return.
+    */
+    void drain() throws IOException {
+        while (ioInProgress || buffer.size() > 0) {
+            if (ioInProgress)
+                ioFinished.awaitUninterruptibly();
+            else
+                writeOut(false, 0);
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,263 +468,349 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        latch.lock();
+        try {
+            Debug.log("WRITE, offset = " + logEnd());
+            preAppend();
+            Database.getBufferPool().pageLogged(after.getId(), currentOffset);
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+
+               a delta record replaces the two images with the page id
+               and the changed byte ranges when that is smaller
+            */
+            PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+            if (delta.serializedSize() < BufferPool.getPageSize()) {
+                out.writeInt(DELTA_RECORD);
+                out.writeLong(tid.getId());
+                writePageId(out, after.getId());
+                delta.write(out);
+            } else {
+                out.writeInt(UPDATE_RECORD);
+                out.writeLong(tid.getId());
+
+                writePageData(out,before);
+                writePageData(out,after);
+            }
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+            Debug.log("WRITE OFFSET = " + currentOffset);
+        } finally {
+            latch.unlock();
+        }
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        //page data is:
+        // page type id
+        // page id (see writePageId)
+        // page data length
+        // page data
+        PageCodec.writePage(raf, p);
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        PageCodec.writePageId(raf, pid);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    PageId readPageId(DataInput raf) throws IOException {
+        return PageCodec.readPageId(raf);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    Page readPageData(DataInput raf) throws IOException {
+        return PageCodec.readPage(raf);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** A log record read back from the log file by readRecord() */
+    static class LogRecord {
+        int type;
+        long tid;
+        long offset;          // the record's LSN
+        RawPage before, after; // UPDATE records
+        PageId pid;           // DELTA and CLR records
+        PageDelta delta;
+        long undone;          // CLR records: offset of the compensated update
+        long[] xactions;      // CHECKPOINT records: tid, first offset pairs
+        LinkedHashMap<PageId,Long> dirtyPages; // CHECKPOINT records: pid, recLSN
+
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        /** @return true for the record types the redo pass installs */
+        boolean isRedoable() {
+            return isUpdate() || type == CLR_RECORD;
+        }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        PageId pageId() {
+            return type == UPDATE_RECORD ? after.getId() : pid;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read the record starting at the current position of in.
+        @return the record, or null at the end of the log (including a
+        record cut short by a crash)
+    */
+    LogRecord readRecord(LogSegments.Reader in) throws IOException {
+        LogRecord rec = new LogRecord();
+        try {
+            rec.offset = in.getFilePointer();
+            rec.type = in.readInt();
+            rec.tid = in.readLong();
+            switch (rec.type) {
+            case UPDATE_RECORD:
+                rec.before = PageCodec.readImage(in);
+                rec.after = PageCodec.readImage(in);
+                break;
+            case DELTA_RECORD:
+                rec.pid = readPageId(in);
+                rec.delta = PageDelta.read(in);
+                break;
+            case CLR_RECORD:
+                rec.undone = in.readLong();
+                rec.pid = readPageId(in);
+                rec.delta = PageDelta.read(in);
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = in.readInt();
+                rec.xactions = new long[2 * numXactions];
+                for (int i = 0; i < rec.xactions.length; i++)
+                    rec.xactions[i] = in.readLong();
+                int numDirty = in.readInt();
+                rec.dirtyPages = new LinkedHashMap<PageId,Long>();
+                for (int i = 0; i < numDirty; i++) {
+                    PageId pid = readPageId(in);
+                    rec.dirtyPages.put(pid, in.readLong());
+                }
+                break;
+            }
+            in.readLong(); // start offset
+        } catch (EOFException e) {
+            return null;
+        }
+        return rec;
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Apply the before (undo) or after (redo) state of a logged update to
+        an image of its page.
+        @return the new image; may be data itself, modified in place
+    */
+    static byte[] applyRecord(LogRecord rec, byte[] data, boolean redo) {
+        if (rec.type == UPDATE_RECORD)
+            return (redo ? rec.after : rec.before).getPageData();
+        rec.delta.apply(data, redo);
+        return data;
+    }
 
+    /** @return the image of the page currently on disk */
+    static byte[] readPageBytes(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return file.readPage(pid).getPageData();
+        } catch (RuntimeException e) {
+            // page was never written out before the crash
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    static void writePageBytes(PageId pid, byte[] data) throws IOException {
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(new RawPage(pid, data));
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Undo updates, newest first, logging a CLR for each one, then force
+        the log and write the undone pages.  Caller must hold the buffer
+        pool latch and the log latch, the latter only once: it is released
+        while the CLRs are forced.
+        @param updates the updates to undo, in log order
+    */
+    void undoUpdates(List<LogRecord> updates) throws IOException {
+        LinkedHashMap<PageId, byte[]> pages = new LinkedHashMap<PageId, byte[]>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord rec = updates.get(i);
+            PageId pid = rec.pageId();
+            byte[] current = pages.get(pid);
+            if (current == null)
+                current = readPageBytes(pid);
+            byte[] undone = applyRecord(rec, current.clone(), false);
+
+            preAppend();
+            Database.getBufferPool().pageLogged(pid, currentOffset);
+            out.writeInt(CLR_RECORD);
+            out.writeLong(rec.tid);
+            out.writeLong(rec.offset);
+            writePageId(out, pid);
+            PageDelta.diff(current, undone).write(out);
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+
+            pages.put(pid, undone);
+        }
+        if (pages.isEmpty())
+            return;
+        awaitForce(appendedRecords);
+        for (Map.Entry<PageId, byte[]> page : pages.entrySet()) {
+            writePageBytes(page.getKey(), page.getValue());
+            Database.getBufferPool().pageWritten(page.getKey());
+            Database.getBufferPool().discardPage(page.getKey());
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Read the updates of the given transactions from offset start on,
+        leaving out those already compensated by a CLR.  Caller must hold
+        the log latch, with the log up to end written to the log file.
+    */
+    List<LogRecord> uncompensatedUpdates(long start, long end, Set<Long> tids) throws IOException {
+        ArrayList<LogRecord> updates = new ArrayList<LogRecord>();
+        HashSet<Long> compensated = new HashSet<Long>();
+        LogSegments.Reader in = segments.reader(start);
+        LogRecord rec;
+        while (in.getFilePointer() < end && (rec = readRecord(in)) != null) {
+            if (!tids.contains(rec.tid))
+                continue;
+            if (rec.isUpdate())
+                updates.add(rec);
+            else if (rec.type == CLR_RECORD)
+                compensated.add(rec.undone);
+        }
+        Iterator<LogRecord> it = updates.iterator();
+        while (it.hasNext()) {
+            if (compensated.contains(it.next().offset))
+                it.remove();
+        }
+        return updates;
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Page image read from the log or rebuilt from a delta record; only
+        what DbFile.writePage needs.  PageCodec.decode() turns an image
+        with a known type id into a page of that type. */
+    static class RawPage implements Page {
+        final int typeId; // 0 if unknown
+        private final PageId pid;
+        private final byte[] data;
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        RawPage(PageId pid, byte[] data) {
+            this(0, pid, data);
         }
-        return newPage;
 
+        RawPage(int typeId, PageId pid, byte[] data) {
+            this.typeId = typeId;
+            this.pid = pid;
+            this.data = data;
+        }
+
+        public PageId getId() { return pid; }
+        public TransactionId isDirty() { return null; }
+        public void markDirty(boolean dirty, TransactionId tid) { }
+        public byte[] getPageData() { return data; }
+        public Page getBeforeImage() { return this; }
+        public void setBeforeImage() { }
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
-        Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.printf("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+        latch.lock();
+        try {
+            Debug.log("BEGIN");
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.printf("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            preAppend();
+            out.writeInt(BEGIN_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+            currentOffset = logEnd();
+
+            Debug.log("BEGIN OFFSET = " + currentOffset);
+        } finally {
+            latch.unlock();
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: instead of flushing the buffer pool it records the active
+        transactions and the buffer pool's dirty page table, so taking it
+        costs about as much as any other append.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        latch.lock();
+        try {
+            //Debug.log("CHECKPOINT, offset = " + logEnd());
+            preAppend();
+            long startCpOffset = logEnd();
+            Map<PageId,Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+
+            //once the CP is on disk, point the log file at it
+            awaitForce(appendedRecords);
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
+        } finally {
+            latch.unlock();
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
+        consumption: every segment that ends before the first record the
+        last checkpoint still needs is deleted.  Records keep their offsets,
+        so nothing is copied. */
+    public void logTruncate() throws IOException {
+        latch.lock();
+        try {
+            drain();
+            long cpLoc = segments.getCheckpoint();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
+
+            long minLogRecord = cpLoc;
+            LogRecord cp = readRecord(segments.reader(cpLoc));
+            if (cp == null || cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+            for (int i = 0; i < cp.xactions.length; i += 2)
+                minLogRecord = Math.min(minLogRecord, cp.xactions[i + 1]);
+            for (long recLsn : cp.dirtyPages.values())
+                minLogRecord = Math.min(minLogRecord, recLsn);
+
+            int deleted = segments.truncate(minLogRecord);
+            Debug.log("TRUNCATING LOG; DELETED " + deleted + " SEGMENTS ; NEW START : " + segments.start());
+        } finally {
+            latch.unlock();
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -463,11 +823,33 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        // write out the transaction's records before taking the buffer
+        // pool latch; it appends no more, so they all end before end
+        Long firstRecord;
+        long end;
+        latch.lock();
+        try {
+            firstRecord = tidToFirstLogRecord.get(tid.getId());
+            if (firstRecord == null)
+                return;
+            drain();
+            end = fileEnd;
+        } finally {
+            latch.unlock();
+        }
+
+        BufferPool bp = Database.getBufferPool();
+        bp.latch();
+        try {
+            latch.lock();
+            try {
+                undoUpdates(uncompensatedUpdates(firstRecord, end,
+                        Collections.singleton(tid.getId())));
+            } finally {
+                latch.unlock();
             }
+        } finally {
+            bp.unlatch();
         }
     }
 
@@ -475,13 +857,19 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        latch.lock();
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+            try {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                drain();
+                segments.close();
+            } catch (IOException e) {
+                System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                e.printStackTrace();
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -490,12 +878,151 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
+        BufferPool bp = Database.getBufferPool();
+        bp.latch();
+        try {
+            latch.lock();
+            try {
                 recoveryUndecided = false;
-                // some code goes here
+                drain();
+                fileEnd = segments.length();
+                currentOffset = logEnd();
+
+                // analysis: rebuild the active transaction table and the
+                // dirty page table, starting from those in the last
+                // checkpoint.  The checkpoint is fuzzy, so updates before it
+                // may still have to be redone: the scan starts at the
+                // smallest recLSN, but only records after the checkpoint
+                // change the two tables.
+                long cpLoc = segments.getCheckpoint();
+                HashMap<Long,Long> activeTransactions = new HashMap<Long,Long>();
+                HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                long scanStart = LONG_SIZE;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    LogRecord cp = readRecord(segments.reader(cpLoc));
+                    for (int i = 0; i < cp.xactions.length; i += 2)
+                        activeTransactions.put(cp.xactions[i], cp.xactions[i + 1]);
+                    dirtyPages.putAll(cp.dirtyPages);
+                    scanStart = cpLoc;
+                    for (long recLsn : cp.dirtyPages.values())
+                        scanStart = Math.min(scanStart, recLsn);
+                }
+                ArrayList<LogRecord> redoRecords = new ArrayList<LogRecord>();
+                LogSegments.Reader in = segments.reader(scanStart);
+                LogRecord rec;
+                while ((rec = readRecord(in)) != null) {
+                    if (rec.offset <= cpLoc) {
+                        if (rec.isRedoable())
+                            redoRecords.add(rec);
+                        continue;
+                    }
+                    switch (rec.type) {
+                    case BEGIN_RECORD:
+                        activeTransactions.put(rec.tid, rec.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        activeTransactions.remove(rec.tid);
+                        break;
+                    default:
+                        if (rec.isRedoable()) {
+                            if (!activeTransactions.containsKey(rec.tid))
+                                activeTransactions.put(rec.tid, rec.offset);
+                            if (!dirtyPages.containsKey(rec.pageId()))
+                                dirtyPages.put(rec.pageId(), rec.offset);
+                            redoRecords.add(rec);
+                        }
+                    }
+                }
+
+                // redo: repeat history for every page in the dirty page table
+                // from its recLSN on; pages are independent, so they are
+                // partitioned across worker threads
+                redo(redoRecords, dirtyPages);
+
+                // undo: roll back the transactions still active at the crash
+                if (!activeTransactions.isEmpty()) {
+                    long undoStart = Collections.min(activeTransactions.values());
+                    undoUpdates(uncompensatedUpdates(undoStart, fileEnd,
+                            activeTransactions.keySet()));
+                    for (Long loser : activeTransactions.keySet()) {
+                        preAppend();
+                        out.writeInt(ABORT_RECORD);
+                        out.writeLong(loser);
+                        out.writeLong(currentOffset);
+                        currentOffset = logEnd();
+                    }
+                }
+                tidToFirstLogRecord.clear();
+                force();
+            } finally {
+                latch.unlock();
+            }
+        } finally {
+            bp.unlatch();
+        }
+    }
+
+    /** Redo pass of recovery.  Records for the same page are applied in
+        log order to one in-memory image, which is read and written once;
+        different pages are handled in parallel.  A record is skipped when
+        it is older than its page's recLSN in the dirty page table.
+        Caller must hold the buffer pool latch and the log latch.
+    */
+    void redo(List<LogRecord> records, Map<PageId,Long> dirtyPages) throws IOException {
+        final LinkedHashMap<PageId, List<LogRecord>> byPage = new LinkedHashMap<PageId, List<LogRecord>>();
+        for (LogRecord rec : records) {
+            PageId pid = rec.pageId();
+            Long recLsn = dirtyPages.get(pid);
+            if (recLsn == null || rec.offset < recLsn)
+                continue;
+            List<LogRecord> pageRecords = byPage.get(pid);
+            if (pageRecords == null) {
+                pageRecords = new ArrayList<LogRecord>();
+                byPage.put(pid, pageRecords);
             }
-         }
+            pageRecords.add(rec);
+        }
+        if (byPage.isEmpty())
+            return;
+
+        int workers = Math.min(byPage.size(), Runtime.getRuntime().availableProcessors());
+        final List<List<PageId>> partitions = new ArrayList<List<PageId>>();
+        for (int i = 0; i < workers; i++)
+            partitions.add(new ArrayList<PageId>());
+        for (PageId pid : byPage.keySet())
+            partitions.get((pid.hashCode() & Integer.MAX_VALUE) % workers).add(pid);
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final List<PageId> partition : partitions) {
+                done.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (PageId pid : partition) {
+                            byte[] data = readPageBytes(pid);
+                            for (LogRecord rec : byPage.get(pid))
+                                data = applyRecord(rec, data, true);
+                            writePageBytes(pid, data);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("redo failed", e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException("redo interrupted", e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        for (PageId pid : byPage.keySet())
+            Database.getBufferPool().discardPage(pid);
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1030,13 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    public void force() throws IOException {
+        latch.lock();
+        try {
+            awaitForce(appendedRecords);
+        } finally {
+            latch.unlock();
+        }
     }
 
 }
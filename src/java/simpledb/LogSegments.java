@@ -0,0 +1,243 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * addressed by global log sequence number (LSN): segment n holds the bytes
+ * with LSNs from n * segmentSize up to (n + 1) * segmentSize, in the file
+ * named after the log with n appended.  Records may span segment
+ * boundaries.  Truncating the log deletes whole segments, so an LSN stays
+ * valid for as long as the log still contains it.
+ * <p>
+ * The log file itself becomes a small control file holding the LSN of the
+ * last checkpoint.  LSNs start at LogFile.LONG_SIZE, where the first record
+ * of the single-file log used to be.
+ * <p>
+ * LogSegments is not thread safe.  LogFile writes through it with only one
+ * write in progress at a time, and reads only while nothing is being
+ * written.
+ */
+class LogSegments {
+
+    static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File control;
+    private final RandomAccessFile controlFile;
+    private final long segmentSize;
+    private final ConcurrentSkipListMap<Long, FileChannel> segments =
+        new ConcurrentSkipListMap<Long, FileChannel>();
+    private final Set<FileChannel> unforced = new HashSet<FileChannel>();
+    private volatile long end;
+
+    LogSegments(File control, long segmentSize) throws IOException {
+        this.control = control;
+        this.segmentSize = segmentSize;
+        controlFile = new RandomAccessFile(control, "rw");
+
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        File[] files = dir.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            String name = f.getName();
+            if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+"))
+                segments.put(Long.parseLong(name.substring(prefix.length())),
+                        new RandomAccessFile(f, "rw").getChannel());
+        }
+        if (segments.isEmpty()) {
+            // nothing to recover: whatever the control file says is stale
+            end = LogFile.LONG_SIZE;
+            setCheckpoint(LogFile.NO_CHECKPOINT_ID);
+        } else {
+            Map.Entry<Long, FileChannel> last = segments.lastEntry();
+            end = last.getKey() * segmentSize + last.getValue().size();
+        }
+    }
+
+    /** @return the LSN just past the last byte written */
+    long length() {
+        return end;
+    }
+
+    /** @return the LSN of the oldest byte still in the log */
+    long start() {
+        return segments.isEmpty() ? end : Math.max(segments.firstKey() * segmentSize, LogFile.LONG_SIZE);
+    }
+
+    /** @return the number of segment files */
+    int numSegments() {
+        return segments.size();
+    }
+
+    long getCheckpoint() throws IOException {
+        controlFile.seek(0);
+        return controlFile.readLong();
+    }
+
+    /** Point the control file at a checkpoint record, and force it. */
+    void setCheckpoint(long lsn) throws IOException {
+        controlFile.seek(0);
+        controlFile.writeLong(lsn);
+        controlFile.setLength(LogFile.LONG_SIZE);
+        controlFile.getChannel().force(true);
+    }
+
+    private File segmentFile(long index) {
+        return new File(control.getAbsoluteFile().getParentFile(),
+                String.format("%s.%010d", control.getName(), index));
+    }
+
+    private FileChannel segment(long index) throws IOException {
+        FileChannel channel = segments.get(index);
+        if (channel == null) {
+            channel = new RandomAccessFile(segmentFile(index), "rw").getChannel();
+            segments.put(index, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Write chunks obtained from LogBuffer.detach() starting at the given
+     * LSN, opening new segments as the log grows.
+     * @return the LSN just past the last byte written
+     */
+    long write(List<ByteBuffer> chunks, long position) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            while (chunk.hasRemaining()) {
+                long index = position / segmentSize;
+                long base = index * segmentSize;
+                FileChannel channel = segment(index);
+                ByteBuffer part = chunk.duplicate();
+                part.limit(part.position() + (int) Math.min(chunk.remaining(), base + segmentSize - position));
+                int n = channel.write(part, position - base);
+                chunk.position(chunk.position() + n);
+                position += n;
+                unforced.add(channel);
+            }
+        }
+        end = Math.max(end, position);
+        return position;
+    }
+
+    /** Force every segment written since the last force. */
+    void force() throws IOException {
+        for (FileChannel channel : unforced)
+            channel.force(false);
+        unforced.clear();
+    }
+
+    /**
+     * Delete every segment that lies entirely before lsn.
+     * @return the number of segments deleted
+     */
+    int truncate(long lsn) throws IOException {
+        int deleted = 0;
+        for (Long index : new ArrayList<Long>(segments.headMap(lsn / segmentSize).keySet())) {
+            FileChannel channel = segments.remove(index);
+            unforced.remove(channel);
+            channel.close();
+            segmentFile(index).delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Throw the whole log away and start an empty one. */
+    void reset() throws IOException {
+        truncate(Long.MAX_VALUE);
+        end = LogFile.LONG_SIZE;
+        setCheckpoint(LogFile.NO_CHECKPOINT_ID);
+    }
+
+    boolean isOpen() {
+        return controlFile.getChannel().isOpen();
+    }
+
+    void close() throws IOException {
+        for (FileChannel channel : segments.values())
+            channel.close();
+        controlFile.close();
+    }
+
+    /** @return a reader positioned at the given LSN */
+    Reader reader(long position) {
+        return new Reader(new SegmentInput(position));
+    }
+
+    /** Reads the log sequentially, across segment boundaries.  Reading
+        past the end of the log throws EOFException. */
+    static class Reader extends DataInputStream {
+        private final SegmentInput input;
+
+        private Reader(SegmentInput input) {
+            super(input);
+            this.input = input;
+        }
+
+        /** @return the LSN of the next byte to be read */
+        long getFilePointer() {
+            return input.position - input.buffered.remaining();
+        }
+
+        void seek(long position) {
+            input.seek(position);
+        }
+    }
+
+    private class SegmentInput extends InputStream {
+        final ByteBuffer buffered = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position; // LSN of the byte after the buffered ones
+
+        SegmentInput(long position) {
+            seek(position);
+        }
+
+        void seek(long position) {
+            this.position = position;
+            buffered.clear();
+            buffered.limit(0);
+        }
+
+        private boolean fill() throws IOException {
+            if (position >= end)
+                return false;
+            long index = position / segmentSize;
+            long base = index * segmentSize;
+            FileChannel channel = segments.get(index);
+            if (channel == null)
+                throw new IOException("log position " + position + " has been truncated");
+            buffered.clear();
+            buffered.limit((int) Math.min(buffered.capacity(),
+                    Math.min(end, base + segmentSize) - position));
+            int n = channel.read(buffered, position - base);
+            buffered.flip();
+            if (n <= 0)
+                return false;
+            position += n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffered.hasRemaining() && !fill())
+                return -1;
+            return buffered.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!buffered.hasRemaining() && !fill())
+                return -1;
+            int n = Math.min(len, buffered.remaining());
+            buffered.get(b, off, n);
+            return n;
+        }
+    }
+}
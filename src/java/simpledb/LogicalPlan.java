@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /**
@@ -271,6 +272,146 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Range filters estimated to select at most this fraction of a table are
+        evaluated through a secondary index instead of a sequential scan */
+    public static final double INDEX_SCAN_SELECTIVITY = 0.1;
+
+    /** The filters of a table which an index can evaluate, see {@link #matchIndex} */
+    private static class IndexMatch {
+        IndexPredicate pred;
+        double sel;
+        int matched;
+    }
+
+    /** Find the most selective filters on a table which can be evaluated
+        through an index: the B+ tree a table is stored in, or a secondary
+        index of the table.  An index is usable if there are equality filters
+        on a prefix of its fields, optionally followed by range filters on the
+        next field, whose lower and upper bounds are merged into one range.
+        Equality filters always use an index, preferring the index matching
+        the most fields, and so do ranges on the key of a B+ tree table, as
+        they only read part of its leaves; a range alone on a secondary index
+        only if it is estimated to be selective.  The filters are still
+        applied on top of the scan.
+
+        @param t The transaction that the scan will run as a part of
+        @param table The table to scan
+        @param stats The statistics of the table, may be null
+        @return a scan through an index, or null if the table should be scanned sequentially
+    */
+    private OpIterator indexScan(TransactionId t, LogicalScanNode table, TableStats stats) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (file instanceof BTreeFile) {
+            IndexMatch m = matchIndex(table, td, ((BTreeFile) file).keyFields(), stats);
+            if (m != null)
+                return new BTreeScan(t, table.t, table.alias, m.pred);
+        }
+
+        SecondaryIndex bestIndex = null;
+        IndexMatch best = null;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            IndexMatch m = matchIndex(table, td, index.getFields(), stats);
+            if (m == null || m.sel > INDEX_SCAN_SELECTIVITY)
+                continue;
+            if (best == null || m.sel < best.sel || (m.sel == best.sel && m.matched > best.matched)) {
+                bestIndex = index;
+                best = m;
+            }
+        }
+        if (bestIndex == null)
+            return null;
+        return new SecondaryIndexScan(t, bestIndex, best.pred, table.alias);
+    }
+
+    /** Match the filters of a table against an index over the given fields.
+        @return the predicate of the filters on the index and its estimated
+          selectivity, or null if no filter can be evaluated by the index
+    */
+    private IndexMatch matchIndex(LogicalScanNode table, TupleDesc td, int[] fields, TableStats stats) {
+        Field[] values = new Field[fields.length];
+        int matched = 0;
+        LogicalFilterNode lower = null, upper = null;
+        while (matched < fields.length) {
+            LogicalFilterNode lf = indexFilter(table, td, fields[matched], Predicate.Op.EQUALS);
+            if (lf == null) {
+                lower = indexFilter(table, td, fields[matched],
+                        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ);
+                upper = indexFilter(table, td, fields[matched],
+                        Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ);
+                break;
+            }
+            values[matched] = filterValue(td, fields[matched], lf.c);
+            matched++;
+        }
+        if (matched == 0 && lower == null && upper == null)
+            return null;
+
+        IndexMatch m = new IndexMatch();
+        m.matched = matched;
+        if (lower == null && upper == null) {
+            m.pred = new IndexPredicate(Predicate.Op.EQUALS, indexKey(fields, values, matched));
+            return m;
+        }
+        int field = fields[matched];
+        Field lowerKey = null, upperKey = null;
+        if (lower != null) {
+            values[matched] = filterValue(td, field, lower.c);
+            lowerKey = indexKey(fields, values, matched + 1);
+        }
+        if (upper != null) {
+            values[matched] = filterValue(td, field, upper.c);
+            upperKey = indexKey(fields, values, matched + 1);
+        }
+        if (lower != null && upper != null)
+            m.pred = new IndexPredicate(lower.p, lowerKey, upper.p, upperKey);
+        else if (lower != null)
+            m.pred = new IndexPredicate(lower.p, lowerKey);
+        else
+            m.pred = new IndexPredicate(upper.p, upperKey);
+
+        // a range after equal leading fields is at least as selective as the equalities
+        if (matched == 0) {
+            m.sel = 1.0;
+            if (stats != null) {
+                double lowerSel = lower == null ? 1.0
+                        : stats.estimateSelectivity(field, lower.p, filterValue(td, field, lower.c));
+                double upperSel = upper == null ? 1.0
+                        : stats.estimateSelectivity(field, upper.p, filterValue(td, field, upper.c));
+                m.sel = Math.max(0.0, lowerSel + upperSel - 1.0);
+            }
+        }
+        return m;
+    }
+
+    /** The key of an index over the given fields with the first n values */
+    private static Field indexKey(int[] fields, Field[] values, int n) {
+        return fields.length == 1 ? values[0] : new CompositeField(Arrays.copyOf(values, n));
+    }
+
+    /** Find a filter on a field of a table with one of the given operators
+        @return the filter, or null if there is none
+    */
+    private LogicalFilterNode indexFilter(LogicalScanNode table, TupleDesc td, int field, Predicate.Op... ops) {
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !Arrays.asList(ops).contains(lf.p))
+                continue;
+            try {
+                if (td.fieldNameToIndex(lf.fieldPureName) == field)
+                    return lf;
+            } catch (NoSuchElementException e) {
+            }
+        }
+        return null;
+    }
+
+    /** The constant of a filter on a field, as a Field of the type of the field */
+    private static Field filterValue(TupleDesc td, int field, String c) {
+        if (td.getFieldType(field) == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        return new StringField(c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,15 +433,18 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
+            String baseTableName;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 baseTableName = Database.getCatalog().getTableName(table.t);
+                 ss = indexScan(t, table, baseTableStats.get(baseTableName));
+                 if (ss == null)
+                     ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
-            String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageCodec is the registry of page and page id types that can appear in
+ * the log.  Each type is written as a one byte id instead of its class
+ * name, and read back through a factory registered for that id instead of
+ * by reflection.
+ * <p>
+ * A serialized page id is its type id followed by the ints of
+ * PageId.serialize(), whose number is fixed per type.  A serialized page
+ * is its type id, its page id, an int length and the page data.
+ */
+class PageCodec {
+
+    /** Builds a page of one type from its id and data */
+    interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    /** Builds a page id of one type from the ints of PageId.serialize() */
+    interface PageIdFactory {
+        PageId create(int[] args);
+    }
+
+    static final int HEAP_PAGE = 1;
+    static final int BTREE_LEAF_PAGE = 2;
+    static final int BTREE_INTERNAL_PAGE = 3;
+    static final int BTREE_HEADER_PAGE = 4;
+    static final int BTREE_ROOT_PTR_PAGE = 5;
+    static final int HASH_DIRECTORY_PAGE = 6;
+    static final int HASH_BUCKET_PAGE = 7;
+
+    static final int HEAP_PAGE_ID = 1;
+    static final int BTREE_PAGE_ID = 2;
+    static final int HASH_PAGE_ID = 3;
+
+    private static final Map<Class<?>, Integer> pageTypes = new HashMap<Class<?>, Integer>();
+    private static final PageFactory[] pageFactories = new PageFactory[128];
+    private static final Map<Class<?>, Integer> idTypes = new HashMap<Class<?>, Integer>();
+    private static final PageIdFactory[] idFactories = new PageIdFactory[128];
+    private static final int[] idArity = new int[128];
+
+    static {
+        registerPageId(HEAP_PAGE_ID, HeapPageId.class, 2,
+                args -> new HeapPageId(args[0], args[1]));
+        registerPageId(BTREE_PAGE_ID, BTreePageId.class, 3,
+                args -> new BTreePageId(args[0], args[1], args[2]));
+        registerPageId(HASH_PAGE_ID, HashPageId.class, 2,
+                args -> new HashPageId(args[0], args[1]));
+
+        registerPage(HEAP_PAGE, HeapPage.class,
+                (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        registerPage(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyFields(pid)));
+        registerPage(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyFields(pid)));
+        registerPage(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        registerPage(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        registerPage(HASH_DIRECTORY_PAGE, HashDirectoryPage.class,
+                (pid, data) -> new HashDirectoryPage((HashPageId) pid, data));
+        registerPage(HASH_BUCKET_PAGE, HashBucketPage.class,
+                (pid, data) -> new HashBucketPage((HashPageId) pid, data,
+                        Database.getCatalog().getTupleDesc(pid.getTableId())));
+    }
+
+    private static int[] keyFields(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyFields();
+    }
+
+    /**
+     * Register a page type under a type id, which is stored in the log and
+     * so must never be reused for another type.
+     */
+    static synchronized void registerPage(int typeId, Class<? extends Page> pageClass, PageFactory factory) {
+        if (pageFactories[typeId] != null)
+            throw new IllegalArgumentException("page type id " + typeId + " is already registered");
+        pageTypes.put(pageClass, typeId);
+        pageFactories[typeId] = factory;
+    }
+
+    /**
+     * Register a page id type under a type id.
+     * @param arity the number of ints serialize() returns for this type
+     */
+    static synchronized void registerPageId(int typeId, Class<? extends PageId> idClass, int arity,
+            PageIdFactory factory) {
+        if (idFactories[typeId] != null)
+            throw new IllegalArgumentException("page id type id " + typeId + " is already registered");
+        idTypes.put(idClass, typeId);
+        idFactories[typeId] = factory;
+        idArity[typeId] = arity;
+    }
+
+    private static int typeId(Map<Class<?>, Integer> types, Class<?> c) throws IOException {
+        Integer typeId = types.get(c);
+        if (typeId == null)
+            throw new IOException("no codec registered for " + c.getName());
+        return typeId;
+    }
+
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int typeId = typeId(idTypes, pid.getClass());
+        out.writeByte(typeId);
+        int[] args = pid.serialize();
+        for (int i = 0; i < idArity[typeId]; i++)
+            out.writeInt(args[i]);
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        int typeId = in.readByte();
+        if (typeId <= 0 || idFactories[typeId] == null)
+            throw new IOException("unknown page id type " + typeId);
+        int[] args = new int[idArity[typeId]];
+        for (int i = 0; i < args.length; i++)
+            args[i] = in.readInt();
+        return idFactories[typeId].create(args);
+    }
+
+    static void writePage(DataOutput out, Page page) throws IOException {
+        out.writeByte(typeId(pageTypes, page.getClass()));
+        writePageId(out, page.getId());
+        byte[] data = page.getPageData();
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Read a page written by writePage without decoding its data, which is
+     * all log replay needs.
+     */
+    static LogFile.RawPage readImage(DataInput in) throws IOException {
+        int typeId = in.readByte();
+        if (typeId <= 0 || pageFactories[typeId] == null)
+            throw new IOException("unknown page type " + typeId);
+        PageId pid = readPageId(in);
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new LogFile.RawPage(typeId, pid, data);
+    }
+
+    /** Read a page written by writePage and rebuild it as its own type. */
+    static Page readPage(DataInput in) throws IOException {
+        return decode(readImage(in));
+    }
+
+    /** Rebuild a raw page image as a page of its registered type. */
+    static Page decode(LogFile.RawPage image) throws IOException {
+        return pageFactories[image.typeId].create(image.getId(), image.getPageData());
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageDelta is the body of a physiological log record: the byte ranges of a
+ * page that an update changed, with their contents before and after the
+ * update. Ranges closer together than {@link #MERGE_GAP} bytes are merged,
+ * so a tuple insert or delete typically produces one range for the tuple
+ * and one for the header bitmap.
+ */
+class PageDelta {
+
+    /** Unchanged bytes allowed inside a range before it is split in two */
+    static final int MERGE_GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the byte ranges in which two images of the same page differ.
+     */
+    static PageDelta diff(byte[] beforeData, byte[] afterData) {
+        if (beforeData.length != afterData.length)
+            throw new IllegalArgumentException("page images differ in size");
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < afterData.length) {
+            if (beforeData[i] == afterData[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1, gap = 0;
+            for (i = end; i < afterData.length && gap <= MERGE_GAP; i++) {
+                if (beforeData[i] != afterData[i]) {
+                    end = i + 1;
+                    gap = 0;
+                } else {
+                    gap++;
+                }
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0], end = ranges.get(r)[1];
+            offsets[r] = start;
+            b[r] = Arrays.copyOfRange(beforeData, start, end);
+            a[r] = Arrays.copyOfRange(afterData, start, end);
+        }
+        return new PageDelta(offsets, b, a);
+    }
+
+    /** @return the number of bytes {@link #write} produces */
+    int serializedSize() {
+        int size = LogFile.INT_SIZE;
+        for (byte[] range : after)
+            size += 2 * LogFile.INT_SIZE + 2 * range.length;
+        return size;
+    }
+
+    /**
+     * Apply this delta to a page image in place.
+     * @param data the page image
+     * @param redo true to install the after image, false to restore the before image
+     */
+    void apply(byte[] data, boolean redo) {
+        byte[][] src = redo ? after : before;
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(src[r], 0, data, offsets[r], src[r].length);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] b = new byte[n][];
+        byte[][] a = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            b[r] = new byte[len];
+            a[r] = new byte[len];
+            in.readFully(b[r]);
+            in.readFully(a[r]);
+        }
+        return new PageDelta(offsets, b, a);
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -272,6 +274,15 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private boolean asyncCommit = false;
+
+    /**
+     * Commit every transaction of this session asynchronously; see
+     * {@link Transaction#setAsyncCommit}.
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -427,6 +438,55 @@ public class Parser {
 
     }
 
+    /** CREATE INDEX name ON table (column), which Zql does not parse */
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Build a secondary index on a column of a heap table, stored in the file
+     * name.idx next to the file of the table.
+     */
+    public void handleCreateIndexStatement(String name, String table, String column, TransactionId tid)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        handleCreateIndexStatement(name, table, new String[] { column }, tid);
+    }
+
+    /**
+     * Build a secondary index on one or more columns of a heap table, keyed
+     * on the columns in the given order.
+     */
+    public void handleCreateIndexStatement(String name, String table, String[] columns, TransactionId tid)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+        try {
+            Database.getCatalog().getTableId(name);
+            throw new simpledb.ParsingException("Table or index " + name + " already exists");
+        } catch (NoSuchElementException e) {
+        }
+        int[] fields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            try {
+                fields[i] = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(columns[i]);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown field " + columns[i] + " in table " + table);
+            }
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile))
+            throw new simpledb.ParsingException("Only heap tables can have secondary indexes");
+        File indexFile = new File(((HeapFile) file).getFile().getAbsoluteFile().getParentFile(), name + ".idx");
+        SecondaryIndex.create(tid, name, tableId, fields, indexFile);
+        System.out.println("Created index " + name + " on " + table + "(" + String.join(", ", columns) + ")");
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -454,10 +514,13 @@ public class Parser {
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
             curtrans = new Transaction();
+            curtrans.setReadOnly(s.isReadOnly());
+            curtrans.setAsyncCommit(asyncCommit);
             curtrans.start();
             inUserTrans = true;
-            System.out.println("Started a new transaction tid = "
-                    + curtrans.getId().getId());
+            System.out.println("Started a new "
+                    + (curtrans.isReadOnly() ? "read-only " : "")
+                    + "transaction tid = " + curtrans.getId().getId());
         } else {
             throw new simpledb.ParsingException("Unsupported operation");
         }
@@ -493,6 +556,11 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (m.matches()) {
+            processCreateIndexStatement(m.group(1), m.group(2), m.group(3).split("\\s*,\\s*"));
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -501,6 +569,34 @@ public class Parser {
         }
     }
 
+    private void processCreateIndexStatement(String name, String table, String[] columns) {
+        Transaction t = inUserTrans ? curtrans : new Transaction();
+        try {
+            if (!inUserTrans)
+                t.start();
+            try {
+                handleCreateIndexStatement(name, table, columns, t.getId());
+                if (!inUserTrans)
+                    t.commit();
+            } catch (Throwable a) {
+                t.abort();
+                if (inUserTrans) {
+                    inUserTrans = false;
+                    curtrans = null;
+                }
+                if (a instanceof simpledb.ParsingException)
+                    throw (simpledb.ParsingException) a;
+                throw new DbException(a.getMessage());
+            }
+        } catch (simpledb.ParsingException e) {
+            System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (DbException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void processNextStatement(InputStream is) {
         try {
             ZqlParser p = new ZqlParser(is);
@@ -512,6 +608,7 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setAsyncCommit(asyncCommit);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -581,7 +678,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -595,7 +692,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-asynccommit] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -616,6 +713,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-asynccommit")) {
+                    asyncCommit = true;
+                    System.out.println("Asynchronous commit enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -674,7 +774,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +782,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A SecondaryIndex is a B+ tree over one or more fields of a heap table,
+ * mapping each value of the fields to the RecordIds of the tuples holding it.
+ * <p>
+ * The entries of the index are tuples of the indexed fields, the page number
+ * and the slot of the indexed tuple, stored in a BTreeFile keyed on the
+ * indexed fields. An index over several fields is keyed on CompositeFields,
+ * and can be searched on any prefix of its fields.
+ * The index is registered in the Catalog both as a table, so that the buffer
+ * pool can read its pages, and as an index of its base table, so that
+ * BufferPool.insertTuple and deleteTuple keep it up to date.
+ *
+ * @see Catalog#addIndex
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final int tableId;
+    private final int[] fields;
+    private final BTreeFile file;
+
+    /**
+     * Open an existing index file.
+     *
+     * @param name the name of the index
+     * @param tableId the id of the indexed heap table
+     * @param field the index of the indexed field
+     * @param f the file of the index
+     */
+    public SecondaryIndex(String name, int tableId, int field, File f) {
+        this(name, tableId, new int[] { field }, f);
+    }
+
+    /**
+     * Open an existing index file over several fields.
+     *
+     * @param name the name of the index
+     * @param tableId the id of the indexed heap table
+     * @param fields the indexes of the indexed fields, most significant first
+     * @param f the file of the index
+     */
+    public SecondaryIndex(String name, int tableId, int[] fields, File f) {
+        this.name = name;
+        this.tableId = tableId;
+        this.fields = fields.clone();
+        int[] keyFields = new int[fields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            keyFields[i] = i;
+        this.file = new BTreeFile(f, keyFields,
+                getEntryDesc(Database.getCatalog().getTupleDesc(tableId), fields));
+    }
+
+    /**
+     * Build an index over the current contents of a heap table and register
+     * it in the Catalog. The table is read as part of tid, so it cannot change
+     * until tid completes; the index file itself is bulk loaded outside of any
+     * transaction.
+     *
+     * @param tid the transaction reading the table
+     * @param name the name of the index, which must not name any table
+     * @param tableId the id of the heap table to index
+     * @param field the index of the field to index
+     * @param f the file to store the index in; it is overwritten
+     * @return the new index
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableId, int field, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        return create(tid, name, tableId, new int[] { field }, f);
+    }
+
+    /**
+     * Build an index over several fields of a heap table, see
+     * {@link #create(TransactionId, String, int, int, File)}.
+     *
+     * @param fields the indexes of the fields to index, most significant first
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableId, int[] fields, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile))
+            throw new DbException("secondary indexes are only supported on heap files");
+        SecondaryIndex index = new SecondaryIndex(name, tableId, fields, f);
+
+        ArrayList<Tuple> entries = new ArrayList<Tuple>();
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        it.open();
+        while (it.hasNext())
+            entries.add(index.getEntry(it.next()));
+        it.close();
+        Collections.sort(entries, new BTreeFileEncoder.TupleComparator(index.file.keyFields()));
+
+        BTreeFileEncoder.bulkLoad(index.file, new TupleIterator(index.file.getTupleDesc(), entries), 1.0);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    /**
+     * The TupleDesc of the entries of an index over one field of a table
+     */
+    public static TupleDesc getEntryDesc(TupleDesc td, int field) {
+        return getEntryDesc(td, new int[] { field });
+    }
+
+    /**
+     * The TupleDesc of the entries of an index over several fields of a table
+     */
+    public static TupleDesc getEntryDesc(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length + 2];
+        String[] names = new String[fields.length + 2];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        types[fields.length] = types[fields.length + 1] = Type.INT_TYPE;
+        names[fields.length] = "page";
+        names[fields.length + 1] = "slot";
+        return new TupleDesc(types, names);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the index of the indexed field in the table, or of the leading
+     *   indexed field if there are several
+     */
+    public int getField() {
+        return fields[0];
+    }
+
+    /**
+     * @return the indexes of the indexed fields in the table
+     */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /**
+     * @return the BTreeFile storing the entries of this index
+     */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * The index entry of a tuple of the table, which must have a RecordId
+     */
+    Tuple getEntry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(file.getTupleDesc());
+        for (int i = 0; i < fields.length; i++)
+            entry.setField(i, t.getField(fields[i]));
+        entry.setField(fields.length, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(fields.length + 1, new IntField(rid.getTupleNumber()));
+        return entry;
+    }
+
+    /**
+     * The RecordId of the tuple an index entry points to
+     */
+    RecordId getRecordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableId, ((IntField) entry.getField(fields.length)).getValue()),
+                ((IntField) entry.getField(fields.length + 1)).getValue());
+    }
+
+    /**
+     * Add the entry of a tuple which has just been inserted into the table
+     */
+    void insertEntry(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), getEntry(t));
+    }
+
+    /**
+     * Remove the entry of a tuple which has been deleted from the table
+     *
+     * @throws DbException if the index has no entry for the tuple
+     */
+    void deleteEntry(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, CompositeField.getKey(t, fields)));
+        Tuple found = null;
+        it.open();
+        while (found == null && it.hasNext()) {
+            Tuple entry = it.next();
+            if (getRecordId(entry).equals(rid))
+                found = entry;
+        }
+        it.close();
+        if (found == null)
+            throw new DbException("index " + name + " has no entry for " + rid);
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /**
+     * Find the RecordIds of all tuples whose indexed fields satisfy ipred,
+     * in index order. On an index over several fields the value of ipred is
+     * a CompositeField of a prefix of the indexed fields.
+     */
+    ArrayList<RecordId> lookup(TransactionId tid, IndexPredicate ipred)
+            throws DbException, TransactionAbortedException {
+        ArrayList<RecordId> rids = new ArrayList<RecordId>();
+        DbFileIterator it = file.indexIterator(tid, ipred);
+        it.open();
+        while (it.hasNext())
+            rids.add(getRecordId(it.next()));
+        it.close();
+        return rids;
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan reads the tuples of a heap table whose indexed field
+ * satisfies an index predicate, by looking up their RecordIds in a
+ * SecondaryIndex and fetching each tuple from its page.
+ * <p>
+ * The RecordIds are all looked up when the scan is opened, so that a Delete
+ * on top of the scan can remove index entries while the scan runs. It is a
+ * SeqScan to the planner, as it produces the same tuples of the same table,
+ * only fewer of them.
+ */
+public class SecondaryIndexScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private ArrayList<RecordId> rids;
+    private int next;
+    private Tuple nextTuple;
+
+    /**
+     * Creates a scan over the tuples of the table of index matching ipred.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read the table through
+     * @param ipred
+     *            the predicate on the indexed field
+     * @param tableAlias
+     *            the alias of the table, see {@link SeqScan#SeqScan}
+     */
+    public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred, String tableAlias) {
+        super(tid, index.getTableId(), tableAlias);
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+    }
+
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        rids = index.lookup(tid, ipred);
+        next = 0;
+        nextTuple = null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (rids == null)
+            throw new IllegalStateException("scan is not open");
+        while (nextTuple == null && next < rids.size()) {
+            RecordId rid = rids.get(next++);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            // the tuple may have been deleted through this scan since it was looked up
+            nextTuple = page.getTuple(rid.getTupleNumber());
+        }
+        return nextTuple != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    public void close() {
+        rids = null;
+        nextTuple = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Transaction encapsulates information about the state of
@@ -10,14 +11,80 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean optimistic = false;
+    private boolean readOnly = false;
+    private boolean asyncCommit = false;
+    private final CompletableFuture<Void> durable = new CompletableFuture<Void>();
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Run this transaction under optimistic concurrency control: reads do not
+     * take locks and are validated against concurrent writers at commit.
+     * Writes still take exclusive locks held until the transaction completes,
+     * as pages are updated in place. Must be called before {@link #start}.
+     */
+    public void setOptimistic(boolean optimistic) {
+        if (started)
+            throw new IllegalStateException("transaction already started");
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Make this a read-only transaction: it takes no locks, writes no log
+     * records, reads a snapshot of the committed database as of {@link #start}
+     * and fails with a DbException if it tries to modify a page. It is aborted
+     * if it needs a page committed after the snapshot. Must be called before
+     * {@link #start}.
+     */
+    public void setReadOnly(boolean readOnly) {
+        if (started)
+            throw new IllegalStateException("transaction already started");
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Let {@link #commit} return as soon as the commit record is in the log
+     * buffer instead of waiting for it to reach disk. The log is forced
+     * within {@link LogFile#setAsyncCommitWindow the asynchronous commit
+     * window}; a crash may lose the transaction until then.
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
+    /**
+     * @return a future that completes once the transaction's commit is
+     * durable, right after {@link #commit} unless the commit is asynchronous.
+     * It completes exceptionally if the transaction aborts.
+     */
+    public CompletableFuture<Void> whenDurable() {
+        return durable;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginReadOnly(tid);
+            return;
+        }
+        if (optimistic)
+            Database.getBufferPool().beginOptimistic(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,7 +96,11 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
+    /**
+     * Finish the transaction. An optimistic transaction which fails validation
+     * is aborted instead, and {@link #whenDurable} completes with a
+     * TransactionAbortedException.
+     */
     public void commit() throws IOException {
         transactionComplete(false);
     }
@@ -42,14 +113,35 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            //nothing was logged or locked, nothing to flush
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+            completeDurable(abort, null);
+        } else if (started) {
+            if (!abort && optimistic) {
+                try {
+                    Database.getBufferPool().validateOptimistic(tid);
+                } catch (TransactionAbortedException e) {
+                    abort = true; //failed validation
+                }
+            }
+
             //write commit / abort records
+            CompletableFuture<Void> logged = null;
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                //write all the dirty pages for this transaction out, or under
+                //NO-FORCE only log them; the commit record forces the log
+                if (Database.getBufferPool().isNoForce())
+                    Database.getBufferPool().logPages(tid);
+                else
+                    Database.getBufferPool().flushPages(tid);
+                if (asyncCommit)
+                    logged = Database.getLogFile().logCommitAsync(tid);
+                else
+                    Database.getLogFile().logCommit(tid);
             }
 
             try {
@@ -60,6 +152,21 @@ public class Transaction {
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
+            completeDurable(abort, logged);
         }
     }
+
+    private void completeDurable(boolean abort, CompletableFuture<Void> logged) {
+        if (abort)
+            durable.completeExceptionally(new TransactionAbortedException());
+        else if (logged == null)
+            durable.complete(null);
+        else
+            logged.whenComplete((v, e) -> {
+                if (e != null)
+                    durable.completeExceptionally(e);
+                else
+                    durable.complete(null);
+            });
+    }
 }
@@ -0,0 +1,144 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	// with 256 byte pages a leaf holds 30 two-int tuples and an internal page 30 keys
+	private static final int PAGE_SIZE = 256;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * Bulk load rows tuples whose keys are i / dups, check the tree and scan it
+	 */
+	private BTreeFile load(int rows, int dups, double fillFactor) throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < rows; i++)
+			tuples.add(Utility.getHeapTuple(new int[] { i / dups, i }));
+
+		File file = File.createTempFile("bulkload", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = BTreeUtility.openBTreeFile(2, file, 0);
+		BTreeFileEncoder.bulkLoad(bf, new TupleIterator(td, tuples), fillFactor);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for (Tuple expected : tuples) {
+			assertTrue(it.hasNext());
+			Tuple t = it.next();
+			assertEquals(expected.getField(0), t.getField(0));
+			assertEquals(expected.getField(1), t.getField(1));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+		return bf;
+	}
+
+	/**
+	 * Bulk loading nothing leaves an empty leaf as the root
+	 */
+	@Test
+	public void empty() throws Exception {
+		BTreeFile bf = load(0, 1, 1.0);
+		assertEquals(1, bf.numPages());
+	}
+
+	/**
+	 * Trees of various heights with full leaves, where the last leaf
+	 * borrows tuples from the one before it
+	 */
+	@Test
+	public void fullLeaves() throws Exception {
+		for (int rows : new int[] { 1, 30, 31, 45, 61, 931, 932, 2000, 28831 }) {
+			BTreeFile bf = load(rows, 1, 1.0);
+			int leaves = Math.max(1, (rows + 29) / 30);
+			assertTrue(bf.numPages() >= leaves);
+		}
+	}
+
+	/**
+	 * Half full leaves: the last leaf is merged into the one before it,
+	 * dropping the pages started for it at the end of the file
+	 */
+	@Test
+	public void halfFullLeaves() throws Exception {
+		// 31 leaves of 15 and one more tuple, which started a second page on level 1
+		BTreeFile bf = load(31 * 15 + 1, 1, 0.5);
+		assertEquals(32, bf.numPages());
+
+		// same one level higher
+		bf = load(31 * 31 * 15 + 1, 1, 0.5);
+		assertEquals(31 * 31 + 31 + 1, bf.numPages());
+
+		for (int rows : new int[] { 16, 29, 500, 3000 })
+			load(rows, 1, 0.5);
+		// fill factors below one half are rounded up
+		load(1000, 1, 0.1);
+	}
+
+	/**
+	 * Keys which repeat across leaves can all be found by an index scan
+	 */
+	@Test
+	public void duplicateKeys() throws Exception {
+		BTreeFile bf = load(5000, 100, 0.8);
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(17));
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			assertEquals(new IntField(17), it.next().getField(0));
+			count++;
+		}
+		it.close();
+		assertEquals(100, count);
+	}
+
+	/**
+	 * The input must be sorted on the key field
+	 */
+	@Test(expected = DbException.class)
+	public void unsorted() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		tuples.add(Utility.getHeapTuple(new int[] { 2, 0 }));
+		tuples.add(Utility.getHeapTuple(new int[] { 1, 0 }));
+		File file = File.createTempFile("bulkload", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = BTreeUtility.openBTreeFile(2, file, 0);
+		BTreeFileEncoder.bulkLoad(bf, new TupleIterator(td, tuples), 1.0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int[] KEY = new int[] { 0, 1 };
+	private static final int TENANTS = 10;
+	private static final int ROWS = 2000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	private ArrayList<Tuple> tuples;
+
+	/**
+	 * Create an empty B+ tree over (tenant, ts, value) keyed on (tenant, ts),
+	 * with small pages so that the tree has several levels
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(512);
+		Database.reset();
+		Database.resetBufferPool(500);
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, KEY, Utility.getTupleDesc(3));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		tid = new TransactionId();
+
+		Random rand = new Random(1);
+		tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < ROWS; i++)
+			tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(TENANTS), rand.nextInt(1000), i }));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static CompositeField key(int... values) {
+		Field[] fields = new Field[values.length];
+		for (int i = 0; i < values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new CompositeField(fields);
+	}
+
+	private static int get(Tuple t, int i) {
+		return ((IntField) t.getField(i)).getValue();
+	}
+
+	/**
+	 * The tuples returned by an iterator, checking that they are in key order
+	 */
+	private List<Tuple> collect(DbFileIterator it, boolean reverse) throws Exception {
+		List<Tuple> result = new ArrayList<Tuple>();
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (!result.isEmpty()) {
+				Field prev = bf.getKey(result.get(result.size() - 1));
+				assertTrue(prev.compare(reverse ? Op.GREATER_THAN_OR_EQ : Op.LESS_THAN_OR_EQ, bf.getKey(t)));
+			}
+			result.add(t);
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * The number of tuples with the given tenant whose ts compares to ts with op
+	 */
+	private int expected(int tenant, Op op, int ts) {
+		int count = 0;
+		for (Tuple t : tuples)
+			if (get(t, 0) == tenant && new IntField(get(t, 1)).compare(op, new IntField(ts)))
+				count++;
+		return count;
+	}
+
+	private void checkSearches() throws Exception {
+		assertEquals(ROWS, collect(bf.iterator(tid), false).size());
+		for (int tenant : new int[] { 0, 4, TENANTS - 1 }) {
+			// equality on the leading field
+			List<Tuple> found = collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(tenant))), false);
+			assertEquals(expected(tenant, Op.GREATER_THAN_OR_EQ, 0), found.size());
+			for (Tuple t : found)
+				assertEquals(tenant, get(t, 0));
+
+			// equality on both fields
+			int ts = get(found.get(found.size() / 2), 1);
+			assertEquals(expected(tenant, Op.EQUALS, ts),
+					collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(tenant, ts))), false).size());
+
+			// equality on the leading field and a range on the next one, in both directions
+			for (Op op : new Op[] { Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN, Op.LESS_THAN_OR_EQ }) {
+				IndexPredicate ipred = new IndexPredicate(op, key(tenant, ts));
+				assertEquals(expected(tenant, op, ts), collect(bf.indexIterator(tid, ipred), false).size());
+				assertEquals(expected(tenant, op, ts), collect(bf.indexReverseIterator(tid, ipred), true).size());
+			}
+
+			// and a range with both bounds
+			IndexPredicate range = new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(tenant, ts - 100),
+					Op.LESS_THAN, key(tenant, ts + 100));
+			int inRange = expected(tenant, Op.GREATER_THAN_OR_EQ, ts - 100)
+					- expected(tenant, Op.GREATER_THAN_OR_EQ, ts + 100);
+			assertEquals(inRange, collect(bf.indexIterator(tid, range), false).size());
+			assertEquals(inRange, collect(bf.indexReverseIterator(tid, range), true).size());
+		}
+	}
+
+	/**
+	 * Tuples inserted in random order are kept in lexicographic key order and
+	 * can be searched on a prefix of the key
+	 */
+	@Test
+	public void insertAndSearch() throws Exception {
+		for (Tuple t : tuples)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		checkSearches();
+	}
+
+	/**
+	 * The bulk loader builds the same tree from tuples sorted on the key
+	 */
+	@Test
+	public void bulkLoad() throws Exception {
+		ArrayList<Tuple> sorted = new ArrayList<Tuple>(tuples);
+		Collections.sort(sorted, new BTreeFileEncoder.TupleComparator(KEY));
+		BTreeFileEncoder.bulkLoad(bf, new TupleIterator(bf.getTupleDesc(), sorted), 1.0);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		checkSearches();
+
+		// tuples sorted on the leading field only are rejected
+		Collections.sort(sorted, new BTreeFileEncoder.TupleComparator(2));
+		Collections.sort(sorted, new BTreeFileEncoder.TupleComparator(0));
+		try {
+			BTreeFileEncoder.bulkLoad(bf, new TupleIterator(bf.getTupleDesc(), sorted), 1.0);
+			fail("bulk load of unsorted tuples should fail");
+		} catch (DbException e) {
+		}
+	}
+
+	/**
+	 * Composite keys compare lexicographically, and a prefix compares equal
+	 * to the keys starting with it
+	 */
+	@Test
+	public void compareKeys() {
+		assertTrue(key(1, 5).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(1, 5).compare(Op.GREATER_THAN, key(1, 4)));
+		assertTrue(key(1, 5).compare(Op.EQUALS, key(1)));
+		assertFalse(key(1, 5).equals(key(1)));
+		assertEquals(key(1, 5), key(1, 5));
+		assertEquals(key(1, 5).hashCode(), key(1, 5).hashCode());
+		assertEquals(key(1), key(1, 5).prefix(1));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -82,6 +82,44 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertEquals(1, parent.getNumEntries());
 	}
 
+	@Test
+	public void testAppendSplitLeafPage() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		empty.setSplitFillFactor(1.0);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// create the right-most leaf page and its parent
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.LEAF);
+		BTreeLeafPage leftPage = BTreeUtility.createRandomLeafPage(leftPageId, 2, keyField, 
+				0, BTreeUtility.MAX_RAND_VALUE);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId, 
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		leftPage.setParentId(parentId);
+
+		// an insert past the last key moves nothing to the new page
+		Field field = new IntField(BTreeUtility.MAX_RAND_VALUE);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		BTreeLeafPage page = empty.splitLeafPage(tid, dirtypages, leftPage, field);
+		assertEquals(leftPageId, page.getLeftSiblingId());
+		assertEquals(0, page.getNumTuples());
+		assertEquals(BTreeUtility.getNumTuplesPerPage(2), leftPage.getNumTuples());
+		assertEquals(1, parent.getNumEntries());
+		assertEquals(field, parent.iterator().next().getKey());
+
+		// an insert before the last key of the right-most leaf still splits it in half
+		page.insertTuple(BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2));
+		BTreeLeafPage other = empty.splitLeafPage(tid, dirtypages, leftPage, new IntField(0));
+		assertEquals(leftPageId, other.getId());
+		assertEquals(BTreeUtility.getNumTuplesPerPage(2) / 2, leftPage.getNumTuples());
+	}
+
 	@Test
 	public void testSplitInternalPages() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -172,6 +210,160 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * Stress test for concurrent inserts: several transactions insert into the same
+	 * leaves at once, splitting leaves and internal pages. Transactions aborted
+	 * while waiting for a lock retry, and every split either completes or leaves
+	 * its level of the tree as it was
+	 */
+	@Test
+	public void concurrentInserts() throws Exception {
+		final int threads = 8;
+		final int perThread = 400;
+		BufferPool.setPageSize(1024);
+		File f = File.createTempFile("concurrent", ".dat");
+		f.deleteOnExit();
+		Database.reset();
+		final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] inserters = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int seed = i;
+			inserters[i] = new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					try {
+						for (int j = 0; j < perThread; j++) {
+							Tuple t = BTreeUtility.getBTreeTuple(new int[] { rand.nextInt(1000), seed });
+							while (true) {
+								TransactionId tid = new TransactionId();
+								try {
+									Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+									Database.getBufferPool().transactionComplete(tid);
+									break;
+								} catch (TransactionAbortedException e) {
+									Database.getBufferPool().transactionComplete(tid, false);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			inserters[i].start();
+		}
+		for (Thread inserter : inserters)
+			inserter.join();
+		assertEquals(new ArrayList<Throwable>(), errors);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(threads * perThread, count);
+	}
+
+	/**
+	 * Stress test for concurrent inserts and deletes: while some transactions split
+	 * leaves and internal pages, others empty the leaves to the left of them, causing
+	 * steals and merges. Transactions aborted while waiting for a lock retry. In the end
+	 * the tree must be well formed and hold exactly the keys which were not deleted
+	 */
+	@Test
+	public void concurrentInsertsAndDeletes() throws Exception {
+		final int threads = 4;
+		final int preloaded = 3000;
+		final int deleted = 2000;
+		final int perThread = 500;
+		BufferPool.setPageSize(1024);
+		File f = File.createTempFile("concurrent", ".dat");
+		f.deleteOnExit();
+		Database.reset();
+		Database.resetBufferPool(200);
+		final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		TransactionId loader = new TransactionId();
+		for (int k = 0; k < preloaded; k++)
+			Database.getBufferPool().insertTuple(loader, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { k, 0 }));
+		Database.getBufferPool().transactionComplete(loader);
+
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] workers = new Thread[2 * threads];
+		for (int i = 0; i < threads; i++) {
+			final int n = i;
+			workers[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < perThread; j++) {
+							Tuple t = BTreeUtility.getBTreeTuple(new int[] { preloaded + j * threads + n, 0 });
+							while (true) {
+								TransactionId tid = new TransactionId();
+								try {
+									Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+									Database.getBufferPool().transactionComplete(tid);
+									break;
+								} catch (TransactionAbortedException e) {
+									Database.getBufferPool().transactionComplete(tid, false);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			workers[threads + i] = new Thread() {
+				public void run() {
+					try {
+						for (int k = n; k < deleted; k += threads) {
+							IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(k));
+							while (true) {
+								TransactionId tid = new TransactionId();
+								try {
+									DbFileIterator it = bf.indexIterator(tid, ipred);
+									it.open();
+									Tuple t = it.next();
+									it.close();
+									Database.getBufferPool().deleteTuple(tid, t);
+									Database.getBufferPool().transactionComplete(tid);
+									break;
+								} catch (TransactionAbortedException e) {
+									Database.getBufferPool().transactionComplete(tid, false);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		assertEquals(new ArrayList<Throwable>(), errors);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		for (int k = 0; k < preloaded + threads * perThread; k++) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(k)));
+			it.open();
+			int count = 0;
+			while (it.hasNext()) {
+				it.next();
+				count++;
+			}
+			it.close();
+			assertEquals("key " + k, k < deleted ? 0 : 1, count);
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
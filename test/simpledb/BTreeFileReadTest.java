@@ -201,6 +201,75 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.indexIterator() with a batch of keys: the keys are
+	 * resolved in order, searching the tree once per leaf rather than once per key
+	 */
+	@Test public void multiKeyIndexIterator() throws Exception {
+		BTreeFile file = BTreeUtility.createBTreeFile(2, 5000, null, null, 0);
+		final int[] searches = new int[1];
+		BTreeFile counting = new BTreeFile(file.getFile(), 0, td) {
+			@Override
+			BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+				searches[0]++;
+				return super.findLeafPage(tid, perm, f);
+			}
+		};
+		Database.getCatalog().addTable(counting, UUID.randomUUID().toString());
+		// duplicates of the key at the end of the first leaf
+		for (int i = 0; i < 5; i++)
+			counting.insertTuple(tid, BTreeUtility.getBTreeTuple(new int[] { 502, i }));
+
+		List<Field> keys = new ArrayList<Field>();
+		for (int i = 1; i <= 1000; i++)
+			keys.add(new IntField(i));
+		keys.add(new IntField(7));
+		keys.add(new IntField(0));
+		keys.add(new IntField(6000));
+		Collections.shuffle(keys, new Random(1));
+
+		DbFileIterator it = counting.indexIterator(tid, keys);
+		it.open();
+		int count = 0, prev = 0, dups = 0;
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= prev && key >= 1 && key <= 1000);
+			if (key == 502)
+				dups++;
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(1005, count);
+		assertEquals(6, dups);
+		// keys 0 to 1000 are on the first three leaves, and 6000 needs one more search
+		assertTrue(searches[0] <= 4);
+	}
+
+	/**
+	 * Unit test for the locks taken by BTreeFile.indexIterator(): the root pointer
+	 * page and the internal pages it searches stay locked along with the leaf page,
+	 * so that no other transaction can split or merge them before this one completes
+	 */
+	@Test public void indexIteratorLocksPath() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		BTreePageId rootPtrPid = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) twoLeafPageFile.readPage(rootPtrPid)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(5));
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		Tuple t = it.next();
+		assertTrue(Database.getBufferPool().holdsLock(tid, t.getRecordId().getPageId()));
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootPtrPid));
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootId));
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -166,6 +166,70 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Linear search for the child findChild() should return
+	 */
+	private static BTreePageId scanChild(BTreeInternalPage page, Field f) {
+		BTreeEntry e = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			e = it.next();
+			if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Linear search for the child findChildReverse() should return
+	 */
+	private static BTreePageId scanChildReverse(BTreeInternalPage page, Field f) {
+		BTreePageId child = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (child == null)
+				child = e.getLeftChild();
+			if (f.compare(Predicate.Op.GREATER_THAN_OR_EQ, e.getKey()))
+				child = e.getRightChild();
+		}
+		return child;
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild() and findChildReverse(),
+	 * also after deleting entries leaves empty slots between used ones
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(new BTreePageId(-1, 1, BTreePageId.LEAF), page.findChild(null));
+		assertEquals(new BTreePageId(-1, 21, BTreePageId.LEAF), page.findChildReverse(null));
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int v = 0; v < 70000; v += 97) {
+				IntField f = new IntField(v);
+				assertEquals(scanChild(page, f), page.findChild(f));
+				assertEquals(scanChildReverse(page, f), page.findChildReverse(f));
+			}
+			for (int[] entry : EXAMPLE_VALUES) {
+				IntField f = new IntField(entry[1]);
+				assertEquals(scanChild(page, f), page.findChild(f));
+				assertEquals(scanChildReverse(page, f), page.findChildReverse(f));
+			}
+
+			// delete every third entry
+			Iterator<BTreeEntry> it = page.iterator();
+			LinkedList<BTreeEntry> entries = new LinkedList<BTreeEntry>();
+			for (int i = 0; it.hasNext(); i++) {
+				BTreeEntry e = it.next();
+				if (i % 3 == 1)
+					entries.add(e);
+			}
+			for (BTreeEntry e : entries)
+				page.deleteKeyAndRightChild(e);
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -185,6 +185,86 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field) and reverseIterator(Field)
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		Iterator<Tuple> it = page.iterator(new IntField(22064));
+		assertEquals(new IntField(22064), it.next().getField(0));
+		assertEquals(new IntField(22189), it.next().getField(0));
+		it = page.iterator(new IntField(22065));
+		assertEquals(new IntField(22189), it.next().getField(0));
+		it = page.iterator(new IntField(0));
+		assertEquals(new IntField(1468), it.next().getField(0));
+		assertFalse(page.iterator(new IntField(62779)).hasNext());
+
+		it = page.reverseIterator(new IntField(22189));
+		assertEquals(new IntField(22189), it.next().getField(0));
+		assertEquals(new IntField(22064), it.next().getField(0));
+		it = page.reverseIterator(new IntField(22188));
+		assertEquals(new IntField(22064), it.next().getField(0));
+		it = page.reverseIterator(new IntField(70000));
+		assertEquals(new IntField(62778), it.next().getField(0));
+		assertFalse(page.reverseIterator(new IntField(1467)).hasNext());
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.insertTuple() into a page with empty slots
+	 * between the used ones
+	 */
+	@Test public void addTupleAfterDelete() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple tup = it.next();
+			if (i % 2 == 0)
+				deleted.add(tup);
+		}
+		for (Tuple tup : deleted)
+			page.deleteTuple(tup);
+
+		for (int v = 0; v < 70000; v += 3500)
+			page.insertTuple(BTreeUtility.getBTreeTuple(v, 2));
+		assertEquals(30, page.getNumTuples());
+
+		Field prev = null;
+		it = page.iterator();
+		while (it.hasNext()) {
+			Field f = it.next().getField(0);
+			assertTrue(prev == null || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, f));
+			prev = f;
+		}
+	}
+
+	/**
+	 * Unit test for random inserts and deletes on one page: every tuple can still
+	 * be found by a search and deleted
+	 */
+	@Test public void randomInsertsAndDeletes() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+		Random rand = new Random(1);
+		ArrayList<Tuple> present = new ArrayList<Tuple>();
+		for (int i = 0; i < 2000; i++) {
+			if (page.getNumEmptySlots() == 0 || (!present.isEmpty() && rand.nextInt(3) == 0)) {
+				page.deleteTuple(present.remove(rand.nextInt(present.size())));
+			} else {
+				Tuple tup = BTreeUtility.getBTreeTuple(rand.nextInt(1000), 2);
+				page.insertTuple(tup);
+				present.add(tup);
+			}
+			assertEquals(present.size(), page.getNumTuples());
+		}
+		for (Tuple tup : present) {
+			Tuple found = page.iterator(tup.getField(0)).next();
+			assertEquals(tup.getField(0), found.getField(0));
+			page.deleteTuple(tup);
+		}
+		assertEquals(0, page.getNumTuples());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,290 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final int ROWS = 3000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	private ArrayList<Tuple> tuples;
+
+	/**
+	 * Create an empty B+ tree over (name, value) keyed on the name, and tuples
+	 * with random names of 6 to 20 letters
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		Database.resetBufferPool(500);
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		tid = new TransactionId();
+
+		Random rand = new Random(1);
+		tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < ROWS; i++) {
+			char[] name = new char[6 + rand.nextInt(15)];
+			for (int j = 0; j < name.length; j++)
+				name[j] = (char) ('a' + rand.nextInt(26));
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(new String(name), Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			tuples.add(t);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private BTreeInternalPage root() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * The number of entries of an internal page with full 132 byte STRING keys
+	 */
+	private static int fixedEntries() {
+		return (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+	}
+
+	private int count(IndexPredicate ipred) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private void checkSearches(List<Tuple> present) throws Exception {
+		for (int i = 0; i < present.size(); i += 37) {
+			Field key = present.get(i).getField(0);
+			int expected = 0;
+			for (Tuple t : present)
+				if (t.getField(0).equals(key))
+					expected++;
+			assertEquals(expected, count(new IndexPredicate(Op.EQUALS, key)));
+		}
+		StringField m = new StringField("m", Type.STRING_LEN);
+		int below = 0;
+		for (Tuple t : present)
+			if (t.getField(0).compare(Op.LESS_THAN, m))
+				below++;
+		assertEquals(below, count(new IndexPredicate(Op.LESS_THAN, m)));
+		assertEquals(present.size() - below, count(new IndexPredicate(Op.GREATER_THAN_OR_EQ, m)));
+	}
+
+	/**
+	 * The root of the tree is only a few characters per separator, so it has
+	 * many more children than an internal page with full keys, and the tree
+	 * is one level shallower
+	 */
+	@Test
+	public void truncatedSeparators() throws Exception {
+		for (Tuple t : tuples)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		BTreeInternalPage root = root();
+		assertTrue(root.getNumEntries() > fixedEntries());
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		Iterator<BTreeEntry> it = root.iterator();
+		while (it.hasNext())
+			assertTrue(((StringField) it.next().getKey()).getValue().length() <= 4);
+
+		// the page reads back from its data with the same entries
+		BTreeInternalPage copy = new BTreeInternalPage(root.getId(), root.getPageData(), 0);
+		assertEquals(root.getNumEntries(), copy.getNumEntries());
+		it = root.iterator();
+		Iterator<BTreeEntry> copyIt = copy.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry c = copyIt.next();
+			assertEquals(e.getKey(), c.getKey());
+			assertEquals(e.getLeftChild(), c.getLeftChild());
+			assertEquals(e.getRightChild(), c.getRightChild());
+		}
+		checkSearches(tuples);
+	}
+
+	/**
+	 * Deleting most of the tuples steals separators into the parent and merges
+	 * pages, keeping every page at least half full
+	 */
+	@Test
+	public void deletes() throws Exception {
+		for (Tuple t : tuples)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		List<Tuple> present = new ArrayList<Tuple>(tuples);
+		Collections.shuffle(present, new Random(2));
+		for (Tuple t : present.subList(0, ROWS * 9 / 10))
+			Database.getBufferPool().deleteTuple(tid, t);
+		present = present.subList(ROWS * 9 / 10, ROWS);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		checkSearches(present);
+	}
+
+	/**
+	 * A string of the given length made of the prefix and padding
+	 */
+	private static StringField key(String prefix, char pad, int length) {
+		StringBuilder sb = new StringBuilder(prefix);
+		while (sb.length() < length)
+			sb.append(pad);
+		return new StringField(sb.toString(), Type.STRING_LEN);
+	}
+
+	/**
+	 * Stealing from the left sibling of an internal page rotates a long key into
+	 * a parent which is full of shorter keys, so the parent is split
+	 */
+	@Test
+	public void stealAcrossLongSeparator() throws Exception {
+		int maxEntries = BTreeInternalPage.getMaxVarEntries(BufferPool.getPageSize());
+		int maxBytes = maxEntries * BTreeInternalPage.MAX_VAR_KEY_SIZE;
+		// a parent full of 99 character keys but for a one character key
+		int numLong = (maxBytes - 2) / 100;
+		int firstLeaf = numLong + 3;
+
+		File f = File.createTempFile("steal", ".dat");
+		f.deleteOnExit();
+		BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f));
+		bw.write(BTreeRootPtrPage.createEmptyPageData());
+		for (int i = 1; i < firstLeaf + 12; i++)
+			bw.write(BTreePage.createEmptyPageData());
+		bw.close();
+		BTreeFile sf = new BTreeFile(f, 0, bf.getTupleDesc());
+		Database.getCatalog().addTable(sf, UUID.randomUUID().toString());
+		int tableid = sf.getId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreePageId siblingId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreePageId pageId = new BTreePageId(tableid, 3, BTreePageId.INTERNAL);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				rootPtrId, Permissions.READ_WRITE);
+		rootPtr.setRootId(parentId);
+		dirtypages.put(rootPtrId, rootPtr);
+
+		BTreeInternalPage parent = new BTreeInternalPage(parentId, BTreeInternalPage.createEmptyPageData(), 0);
+		parent.setParentId(rootPtrId);
+		BTreeEntry entry = new BTreeEntry(new StringField("b", Type.STRING_LEN), siblingId, pageId);
+		parent.insertEntry(entry);
+		for (int i = 0; i < numLong; i++) {
+			parent.insertEntry(new BTreeEntry(key(String.format("c%02d", i), 'x', 99),
+					new BTreePageId(tableid, 3 + i, BTreePageId.INTERNAL),
+					new BTreePageId(tableid, 4 + i, BTreePageId.INTERNAL)));
+		}
+		assertEquals(0, parent.getNumEmptySlots());
+		dirtypages.put(parentId, parent);
+
+		// a left sibling with eight full length keys and a page with two short ones
+		BTreeInternalPage sibling = new BTreeInternalPage(siblingId, BTreeInternalPage.createEmptyPageData(), 0);
+		sibling.setParentId(parentId);
+		for (int i = 0; i < 8; i++) {
+			sibling.insertEntry(new BTreeEntry(key("a" + i, 'z', Type.STRING_LEN),
+					new BTreePageId(tableid, firstLeaf + i, BTreePageId.LEAF),
+					new BTreePageId(tableid, firstLeaf + i + 1, BTreePageId.LEAF)));
+		}
+		dirtypages.put(siblingId, sibling);
+		BTreeInternalPage page = new BTreeInternalPage(pageId, BTreeInternalPage.createEmptyPageData(), 0);
+		page.setParentId(parentId);
+		page.insertEntry(new BTreeEntry(new StringField("ba", Type.STRING_LEN),
+				new BTreePageId(tableid, firstLeaf + 9, BTreePageId.LEAF),
+				new BTreePageId(tableid, firstLeaf + 10, BTreePageId.LEAF)));
+		page.insertEntry(new BTreeEntry(new StringField("bb", Type.STRING_LEN),
+				new BTreePageId(tableid, firstLeaf + 10, BTreePageId.LEAF),
+				new BTreePageId(tableid, firstLeaf + 11, BTreePageId.LEAF)));
+		dirtypages.put(pageId, page);
+
+		sf.stealFromLeftInternalPage(tid, dirtypages, page, sibling, parent, entry);
+
+		// the entries moved, and a full length key was pushed up into the parent
+		assertEquals(10, page.getNumEntries() + sibling.getNumEntries());
+		assertTrue(page.getNumEntries() > 2);
+		Field separator = parent.iterator().next().getKey();
+		assertEquals(Type.STRING_LEN, ((StringField) separator).getValue().length());
+		assertTrue(sibling.reverseIterator().next().getKey().compare(Op.LESS_THAN_OR_EQ, separator));
+		assertTrue(page.iterator().next().getKey().compare(Op.GREATER_THAN_OR_EQ, separator));
+
+		// the parent was split under a new root
+		assertFalse(parent.isOverfull());
+		BTreeInternalPage root = (BTreeInternalPage) dirtypages.get(rootPtr.getRootId());
+		assertEquals(1, root.getNumEntries());
+		BTreeEntry top = root.iterator().next();
+		assertEquals(parentId, top.getLeftChild());
+		BTreeInternalPage right = (BTreeInternalPage) dirtypages.get(top.getRightChild());
+		assertFalse(right.isOverfull());
+		assertEquals(numLong + 1, parent.getNumEntries() + right.getNumEntries() + 1);
+		assertEquals(root.getId(), parent.getParentId());
+		assertEquals(root.getId(), right.getParentId());
+		Iterator<BTreeEntry> it = right.iterator();
+		while (it.hasNext())
+			assertEquals(right.getId(), ((BTreePage) dirtypages.get(it.next().getRightChild())).getParentId());
+		assertEquals(parentId, sibling.getParentId());
+		assertEquals(parentId, page.getParentId());
+	}
+
+	/**
+	 * The bulk loader truncates separators and fills internal pages by bytes
+	 */
+	@Test
+	public void bulkLoad() throws Exception {
+		ArrayList<Tuple> sorted = new ArrayList<Tuple>(tuples);
+		Collections.sort(sorted, new BTreeFileEncoder.TupleComparator(0));
+		BTreeFileEncoder.bulkLoad(bf, new TupleIterator(bf.getTupleDesc(), sorted), 1.0);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertTrue(root().getNumEntries() > fixedEntries());
+		checkSearches(tuples);
+	}
+
+	/**
+	 * A separator is the shortest prefix of the right key greater than the left one
+	 */
+	@Test
+	public void separator() {
+		assertEquals(new StringField("b", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("apple", Type.STRING_LEN), new StringField("banana", Type.STRING_LEN)));
+		assertEquals(new StringField("appli", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("apple", Type.STRING_LEN), new StringField("applied", Type.STRING_LEN)));
+		assertEquals(new StringField("apple!", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("apple", Type.STRING_LEN), new StringField("apple!", Type.STRING_LEN)));
+		assertEquals(new StringField("same", Type.STRING_LEN), BTreeFile.separator(
+				new StringField("same", Type.STRING_LEN), new StringField("same", Type.STRING_LEN)));
+		assertEquals(new IntField(5), BTreeFile.separator(new IntField(1), new IntField(5)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
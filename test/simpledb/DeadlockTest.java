@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,73 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Under NO_WAIT a conflicting request aborts instead of waiting.
+   */
+  @Test public void testNoWait() throws Exception {
+    bp.setDeadlockPolicy(BufferPool.DeadlockPolicy.NO_WAIT);
+
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    LockGrabber lg2Read = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2Read.acquired());
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+    assertTrue(lg2Write.getError() instanceof TransactionAbortedException);
+  }
+
+  /**
+   * Under WAIT_DIE an older transaction waits for a younger one, while a
+   * younger transaction requesting a lock held by an older one aborts.
+   * tid1 is older than tid2.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp.setDeadlockPolicy(BufferPool.DeadlockPolicy.WAIT_DIE);
+
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write0.acquired());
+    assertTrue(lg2Write0.getError() instanceof TransactionAbortedException);
+
+    tid2 = new TransactionId();
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write1.acquired());
+    assertNull(lg1Write1.getError());
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write1.acquired());
+  }
+
+  /**
+   * Under WOUND_WAIT an older transaction wounds a younger holder, which
+   * aborts at its next lock request; a younger requester simply waits.
+   * tid1 is older than tid2.
+   */
+  @Test public void testWoundWait() throws Exception {
+    bp.setDeadlockPolicy(BufferPool.DeadlockPolicy.WOUND_WAIT);
+
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write1.acquired());
+    assertNull(lg2Write1.getError());
+
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2Write1.getError() instanceof TransactionAbortedException);
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write0.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,164 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+	// with 256 byte pages a bucket holds 30 two-int tuples and the directory 32 buckets
+	private static final int PAGE_SIZE = 256;
+
+	private HashFile hf;
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.reset();
+		// large enough to hold every page of the file dirty
+		Database.resetBufferPool(500);
+		File file = File.createTempFile("hash", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		hf = new HashFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	private void insert(int key, int value) throws Exception {
+		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { key, value }));
+	}
+
+	private List<Tuple> lookup(IndexPredicate ipred) throws Exception {
+		List<Tuple> result = new ArrayList<Tuple>();
+		DbFileIterator it = hf.indexIterator(tid, ipred);
+		it.open();
+		while (it.hasNext())
+			result.add(it.next());
+		it.close();
+		return result;
+	}
+
+	private List<Tuple> lookup(int key) throws Exception {
+		return lookup(new IndexPredicate(Op.EQUALS, new IntField(key)));
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private HashDirectoryPage directory() throws Exception {
+		return (HashDirectoryPage) Database.getBufferPool().getPage(tid, new HashPageId(hf.getId(), 0),
+				Permissions.READ_ONLY);
+	}
+
+	/**
+	 * An empty file has a directory of depth 0 pointing to one empty bucket
+	 */
+	@Test
+	public void empty() throws Exception {
+		assertEquals(0, count(hf.iterator(tid)));
+		assertTrue(lookup(1).isEmpty());
+		assertEquals(2, hf.numPages());
+		assertEquals(0, directory().getGlobalDepth());
+	}
+
+	/**
+	 * Distinct keys split buckets and double the directory
+	 */
+	@Test
+	public void splits() throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 300; i++)
+			keys.add(i);
+		Collections.shuffle(keys, new Random(1));
+		for (int key : keys)
+			insert(key, key * 2);
+
+		HashDirectoryPage dir = directory();
+		assertTrue(dir.getGlobalDepth() > 0);
+		for (int i = 0; i < dir.getNumEntries(); i++) {
+			HashBucketPage bucket = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(hf.getId(), dir.getEntry(i)), Permissions.READ_ONLY);
+			assertTrue(bucket.getLocalDepth() <= dir.getGlobalDepth());
+		}
+		for (int key = 0; key < 300; key++) {
+			List<Tuple> found = lookup(key);
+			assertEquals(1, found.size());
+			assertEquals(new IntField(key * 2), found.get(0).getField(1));
+		}
+		assertEquals(300, count(hf.iterator(tid)));
+		assertEquals(100, lookup(new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(200))).size());
+	}
+
+	/**
+	 * A bucket whose tuples all have the same key continues on overflow
+	 * pages instead of splitting, and so does a bucket that cannot be split
+	 * because the directory is full
+	 */
+	@Test
+	public void overflow() throws Exception {
+		for (int i = 0; i < 100; i++)
+			insert(7, i);
+		assertEquals(0, directory().getGlobalDepth());
+		assertEquals(100, lookup(7).size());
+
+		for (int i = 0; i < 2000; i++)
+			insert(1000 + i, i);
+		assertEquals(HashDirectoryPage.getMaxDepth(), directory().getGlobalDepth());
+		assertEquals(100, lookup(7).size());
+		for (int i = 0; i < 2000; i += 97)
+			assertEquals(1, lookup(1000 + i).size());
+		assertEquals(2100, count(hf.iterator(tid)));
+	}
+
+	/**
+	 * Deleted tuples are no longer found, and the file survives a restart
+	 * of the buffer pool
+	 */
+	@Test
+	public void deleteAndReread() throws Exception {
+		for (int i = 0; i < 200; i++)
+			insert(i % 50, i);
+		for (Tuple t : lookup(3))
+			Database.getBufferPool().deleteTuple(tid, t);
+		assertTrue(lookup(3).isEmpty());
+		assertEquals(4, lookup(4).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid = new TransactionId();
+		assertTrue(lookup(3).isEmpty());
+		assertEquals(4, lookup(49).size());
+		assertEquals(196, count(hf.iterator(tid)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int TRANSACTIONS = 200;
+
+    /**
+     * Unit test for the offsets LogFile writes at the end of every record:
+     * records appended while the leader of a commit group writes the buffer
+     * out must still carry their own offset in the log
+     */
+    @Test public void concurrentAppendTrailers() throws Exception {
+        File f = File.createTempFile("logfile", "");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f, 4096);
+        log.setGroupCommitDelay(200);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] appenders = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            appenders[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < TRANSACTIONS; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            appenders[i].start();
+        }
+        for (Thread appender : appenders)
+            appender.join();
+        assertTrue(errors.isEmpty());
+        log.force();
+
+        // BEGIN and COMMIT records are a type, a transaction id and the offset
+        long offset = LogFile.LONG_SIZE;
+        LogSegments.Reader in = log.segments.reader(offset);
+        for (int i = 0; i < 2 * THREADS * TRANSACTIONS; i++) {
+            int type = in.readInt();
+            assertTrue(type == LogFile.BEGIN_RECORD || type == LogFile.COMMIT_RECORD);
+            in.readLong();
+            assertEquals(offset, in.readLong());
+            offset = in.getFilePointer();
+        }
+        assertEquals(log.segments.length(), offset);
+        in.close();
+        log.segments.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
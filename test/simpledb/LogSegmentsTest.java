@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static final long SEGMENT_SIZE = 64;
+
+    private File control;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws IOException {
+        File dir = File.createTempFile("logsegments", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        control = new File(dir, "log");
+    }
+
+    private static List<ByteBuffer> chunks(byte[] data) {
+        ByteBuffer chunk = ByteBuffer.wrap(data);
+        return Collections.singletonList(chunk);
+    }
+
+    private static byte[] pattern(int n) {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    /**
+     * Unit test for LogSegments.write() and reader(): data spanning several
+     * segments reads back unchanged from any position
+     */
+    @Test public void writeAndReadAcrossSegments() throws Exception {
+        LogSegments segments = new LogSegments(control, SEGMENT_SIZE);
+        byte[] data = pattern(200);
+        long end = segments.write(chunks(data), LogFile.LONG_SIZE);
+        assertEquals(LogFile.LONG_SIZE + 200, end);
+        assertEquals(end, segments.length());
+        assertEquals(4, segments.numSegments());
+
+        byte[] read = new byte[200];
+        LogSegments.Reader in = segments.reader(LogFile.LONG_SIZE);
+        in.readFully(read);
+        assertArrayEquals(data, read);
+        assertEquals(end, in.getFilePointer());
+        try {
+            in.readByte();
+            fail("expected EOFException");
+        } catch (EOFException e) {
+        }
+
+        in.seek(SEGMENT_SIZE - 2);
+        assertEquals(SEGMENT_SIZE - 2 - LogFile.LONG_SIZE, in.readByte());
+        assertEquals(SEGMENT_SIZE - 1 - LogFile.LONG_SIZE, in.readByte());
+        assertEquals(SEGMENT_SIZE - LogFile.LONG_SIZE, in.readByte());
+        segments.close();
+    }
+
+    /**
+     * Unit test for LogSegments.truncate(): whole segments before the given
+     * position are deleted, and positions after it keep their contents
+     */
+    @Test public void truncateDeletesWholeSegments() throws Exception {
+        LogSegments segments = new LogSegments(control, SEGMENT_SIZE);
+        byte[] data = pattern(200);
+        segments.write(chunks(data), LogFile.LONG_SIZE);
+
+        assertEquals(2, segments.truncate(2 * SEGMENT_SIZE + 10));
+        assertEquals(2, segments.numSegments());
+        assertEquals(2 * SEGMENT_SIZE, segments.start());
+        assertEquals(2, control.getParentFile().list().length - 1);
+
+        LogSegments.Reader in = segments.reader(2 * SEGMENT_SIZE + 10);
+        assertEquals((byte) (2 * SEGMENT_SIZE + 10 - LogFile.LONG_SIZE), in.readByte());
+        segments.close();
+    }
+
+    /**
+     * Unit test for reopening the segments of an existing log
+     */
+    @Test public void reopen() throws Exception {
+        LogSegments segments = new LogSegments(control, SEGMENT_SIZE);
+        segments.write(chunks(pattern(100)), LogFile.LONG_SIZE);
+        segments.setCheckpoint(70);
+        segments.force();
+        segments.close();
+
+        segments = new LogSegments(control, SEGMENT_SIZE);
+        assertEquals(LogFile.LONG_SIZE + 100, segments.length());
+        assertEquals(70, segments.getCheckpoint());
+        long end = segments.write(chunks(pattern(10)), segments.length());
+        assertEquals(LogFile.LONG_SIZE + 110, end);
+
+        segments.reset();
+        assertEquals(0, segments.numSegments());
+        assertEquals(LogFile.NO_CHECKPOINT_ID, segments.getCheckpoint());
+        segments.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
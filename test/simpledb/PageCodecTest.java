@@ -0,0 +1,76 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCodecTest extends SimpleDbTestBase {
+
+    private static Page roundTrip(Page page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageCodec.writePage(new DataOutputStream(bytes), page);
+        return PageCodec.readPage(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * Unit test for PageCodec.writePage() and readPage() on a HeapPage
+     */
+    @Test public void heapPage() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(new HeapPageId(-1, -1), HeapPageReadTest.EXAMPLE_DATA);
+
+        Page read = roundTrip(page);
+        assertTrue(read instanceof HeapPage);
+        assertEquals(page.getId(), read.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * Unit test for PageCodec.writePage() and readPage() on the B+ tree
+     * pages, whose constructors need the key field of their file
+     */
+    @Test public void btreePages() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20, null, null, 1);
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(rootPtrId);
+        BTreeLeafPage leaf = (BTreeLeafPage) f.readPage(rootPtr.getRootId());
+
+        Page read = roundTrip(rootPtr);
+        assertTrue(read instanceof BTreeRootPtrPage);
+        assertEquals(rootPtr.getRootId(), ((BTreeRootPtrPage) read).getRootId());
+
+        read = roundTrip(leaf);
+        assertTrue(read instanceof BTreeLeafPage);
+        assertEquals(leaf.getId(), read.getId());
+        assertEquals(leaf.getNumEmptySlots(), ((BTreeLeafPage) read).getNumEmptySlots());
+        assertArrayEquals(leaf.getPageData(), read.getPageData());
+    }
+
+    /**
+     * Unit test for the compact page id encoding: a type byte and the ints
+     */
+    @Test public void pageIdSize() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BTreePageId pid = new BTreePageId(7, 3, BTreePageId.INTERNAL);
+        PageCodec.writePageId(new DataOutputStream(bytes), pid);
+        assertEquals(1 + 3 * 4, bytes.size());
+        assertEquals(pid, PageCodec.readPageId(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecTest.class);
+    }
+}
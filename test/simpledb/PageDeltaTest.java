@@ -0,0 +1,76 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Unit test for PageDelta.diff() and apply(): a single tuple insert is
+     * logged in a small fraction of a page, and undo/redo reproduce the
+     * two images exactly
+     */
+    @Test public void insertTupleDelta() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(17, 2));
+        byte[] after = page.getPageData();
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertTrue(delta.serializedSize() < BufferPool.getPageSize() / 16);
+
+        byte[] data = before.clone();
+        delta.apply(data, true);
+        assertArrayEquals(after, data);
+        delta.apply(data, false);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Unit test for PageDelta.write() and read()
+     */
+    @Test public void serialization() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.deleteTuple(page.iterator().next());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+        byte[] after = page.getPageData();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageDelta.diff(before, after).write(new DataOutputStream(bytes));
+        PageDelta read = PageDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        byte[] data = before.clone();
+        read.apply(data, true);
+        assertArrayEquals(after, data);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
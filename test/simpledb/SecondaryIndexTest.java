@@ -0,0 +1,259 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private static final int ROWS = 1000;
+
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile table;
+	private TransactionId tid;
+
+	/**
+	 * Create a table t(c0, c1) with about ten tuples for each value of c1
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, 100, null, tuples);
+		table = new HeapFile(f, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(table, "t");
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private SecondaryIndex createIndex() throws Exception {
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		return SecondaryIndex.create(tid, "t_c1", table.getId(), 1, f);
+	}
+
+	private ArrayList<ArrayList<Integer>> withC1(int value) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples)
+			if (t.get(1) == value)
+				result.add(t);
+		return result;
+	}
+
+	private static SecondaryIndexScan findIndexScan(OpIterator plan) {
+		if (plan instanceof SecondaryIndexScan)
+			return (SecondaryIndexScan) plan;
+		if (plan instanceof Operator)
+			for (OpIterator child : ((Operator) plan).getChildren()) {
+				SecondaryIndexScan scan = child == null ? null : findIndexScan(child);
+				if (scan != null)
+					return scan;
+			}
+		return null;
+	}
+
+	private static boolean containsIndexScan(OpIterator plan) {
+		return findIndexScan(plan) != null;
+	}
+
+	/**
+	 * CREATE INDEX builds the index from the current contents of the table
+	 */
+	@Test
+	public void createIndexStatement() throws Exception {
+		new Parser().processNextStatement("CREATE INDEX t_c1 ON t (c1);");
+		SecondaryIndex index = Database.getCatalog().getIndex(table.getId(), 1);
+		assertNotNull(index);
+		assertEquals("t_c1", index.getName());
+		assertNull(Database.getCatalog().getIndex(table.getId(), 0));
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), true);
+
+		int value = tuples.get(0).get(1);
+		SystemTestUtil.matchTuples(new SecondaryIndexScan(tid, index,
+				new IndexPredicate(Op.EQUALS, new IntField(value)), "t"), withC1(value));
+	}
+
+	/**
+	 * Inserts and deletes through the buffer pool update the index
+	 */
+	@Test
+	public void maintenance() throws Exception {
+		SecondaryIndex index = createIndex();
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(1000));
+		Tuple t = new Tuple(table.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(1000));
+		Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		expected.add(SystemTestUtil.tupleToList(t));
+		SystemTestUtil.matchTuples(new SecondaryIndexScan(tid, index, ipred, "t"), expected);
+
+		// delete all tuples with one value of c1 through the index
+		int value = tuples.get(0).get(1);
+		ipred = new IndexPredicate(Op.EQUALS, new IntField(value));
+		Delete delete = new Delete(tid, new SecondaryIndexScan(tid, index, ipred, "t"));
+		delete.open();
+		assertEquals(withC1(value).size(), ((IntField) delete.next().getField(0)).getValue());
+		delete.close();
+		assertTrue(index.lookup(tid, ipred).isEmpty());
+		assertEquals(ROWS + 1 - withC1(value).size(),
+				index.lookup(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0))).size());
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * Index pages changed by a committed transaction are written with the
+	 * table, so the new entries are found once the buffer pool is emptied
+	 */
+	@Test
+	public void committedEntriesAfterReset() throws Exception {
+		SecondaryIndex index = createIndex();
+		for (int i = 0; i < 2000; i++) {
+			Tuple t = new Tuple(table.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(1000));
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		tid = new TransactionId();
+		assertEquals(2000, index.lookup(tid, new IndexPredicate(Op.EQUALS, new IntField(1000))).size());
+		assertEquals(ROWS + 2000,
+				index.lookup(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0))).size());
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * An index created on a table of a loaded schema is recorded in the catalog
+	 * file, and opened again when the schema is loaded the next time
+	 */
+	@Test
+	public void indexInLoadedSchema() throws Exception {
+		File dir = Files.createTempDirectory("schema").toFile();
+		dir.deleteOnExit();
+		File catalog = new File(dir, "catalog.txt");
+		catalog.deleteOnExit();
+		File data = new File(dir, "u.dat");
+		data.deleteOnExit();
+		new File(dir, "u_b.idx").deleteOnExit();
+		FileWriter w = new FileWriter(catalog);
+		w.write("u (a int, b int)\n");
+		w.close();
+		assertTrue(data.createNewFile());
+
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		int tableId = Database.getCatalog().getTableId("u");
+		for (int i = 0; i < 100; i++) {
+			Tuple t = new Tuple(Database.getCatalog().getTupleDesc(tableId));
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(i % 10));
+			Database.getBufferPool().insertTuple(tid, tableId, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		new Parser().processNextStatement("CREATE INDEX u_b ON u (b);");
+
+		Database.reset();
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		tableId = Database.getCatalog().getTableId("u");
+		SecondaryIndex index = Database.getCatalog().getIndex(tableId, 1);
+		assertNotNull(index);
+		assertEquals("u_b", index.getName());
+		tid = new TransactionId();
+		assertEquals(10, index.lookup(tid, new IndexPredicate(Op.EQUALS, new IntField(3))).size());
+	}
+
+	/**
+	 * The planner reads the table through the index for equality filters on
+	 * the indexed field, but not for unselective ranges
+	 */
+	@Test
+	public void physicalPlan() throws Exception {
+		createIndex();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(table.getId(), 1000));
+		int value = tuples.get(0).get(1);
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(containsIndexScan(plan));
+		SystemTestUtil.matchTuples(plan, withC1(value));
+
+		lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Op.GREATER_THAN, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		assertFalse(containsIndexScan(lp.physicalPlan(tid, stats, false)));
+	}
+
+	/**
+	 * An index over two fields is built by CREATE INDEX, and the planner uses
+	 * it for an equality filter on the first field and a range filter on the
+	 * second one
+	 */
+	@Test
+	public void compositeIndex() throws Exception {
+		new Parser().processNextStatement("CREATE INDEX t_c1_c0 ON t (c1, c0);");
+		assertNull(Database.getCatalog().getIndex(table.getId(), 1));
+		SecondaryIndex index = Database.getCatalog().getIndexes(table.getId()).get(0);
+		assertArrayEquals(new int[] { 1, 0 }, index.getFields());
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), true);
+
+		int value = tuples.get(0).get(1);
+		int c0 = tuples.get(0).get(0);
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : withC1(value))
+			if (t.get(0) >= c0)
+				expected.add(t);
+
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(table.getId(), 1000));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c0", Op.GREATER_THAN_OR_EQ, Integer.toString(c0));
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		SecondaryIndexScan scan = findIndexScan(plan);
+		assertNotNull(scan);
+		assertEquals(new CompositeField(new IntField(value), new IntField(c0)), scan.getIndexPredicate().getField());
+		assertEquals(Op.GREATER_THAN_OR_EQ, scan.getIndexPredicate().getOp());
+		SystemTestUtil.matchTuples(plan, expected);
+
+		// the index is maintained on the full key
+		Tuple t = new Tuple(table.getTupleDesc());
+		t.setField(0, new IntField(c0));
+		t.setField(1, new IntField(value));
+		Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		Database.getBufferPool().deleteTuple(tid, t);
+		assertEquals(withC1(value).size(), index.lookup(tid,
+				new IndexPredicate(Op.EQUALS, new CompositeField(new IntField(value)))).size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
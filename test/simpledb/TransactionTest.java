@@ -4,6 +4,11 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +117,150 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for optimistic transactions: reads take no locks, and a
+   * transaction that read a page written by a transaction which committed in
+   * the meantime fails validation.
+   */
+  @Test public void optimisticReadConflict() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, p0));
+
+    // a writer is not blocked by the optimistic reader
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid2, true);
+
+    try {
+      bp.validateOptimistic(tid1);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1, false);
+  }
+
+  /**
+   * Unit test for Transaction.commit() of an optimistic transaction: a
+   * failed validation aborts the transaction, discarding its writes, and
+   * completes whenDurable() with a TransactionAbortedException.
+   */
+  @Test public void optimisticCommitAborts() throws Exception {
+    Transaction t = new Transaction();
+    t.setOptimistic(true);
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    HeapPage p = (HeapPage) bp.getPage(t.getId(), p2, Permissions.READ_WRITE);
+    int empty = p.getNumEmptySlots();
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, t.getId());
+
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid2, true);
+
+    t.commit();
+    assertTrue(t.whenDurable().isCompletedExceptionally());
+    p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(empty, p.getNumEmptySlots());
+    bp.transactionComplete(tid1, true);
+  }
+
+  /**
+   * Unit test for optimistic transactions: writes to pages the transaction
+   * did not read do not cause validation to fail.
+   */
+  @Test public void optimisticDisjointCommit() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_WRITE);
+
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    bp.transactionComplete(tid2, true);
+
+    bp.validateOptimistic(tid1);
+    bp.transactionComplete(tid1, true);
+  }
+
+  /**
+   * Unit test for read-only transactions: they take no locks, are not
+   * blocked by a writer, see the committed version of the page being
+   * written, and cannot request write permission.
+   */
+  @Test public void readOnlyTransaction() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    p.insertTuple(t);
+    p.markDirty(true, tid2);
+    int uncommitted = p.getNumEmptySlots();
+
+    bp.beginReadOnly(tid1);
+    HeapPage committed = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, p2));
+    assertEquals(uncommitted + 1, committed.getNumEmptySlots());
+    try {
+      bp.getPage(tid1, p1, Permissions.READ_WRITE);
+      fail("expected read-only transaction to be refused write access");
+    } catch (DbException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1, true);
+
+    bp.transactionComplete(tid2, true);
+    TransactionId tid3 = new TransactionId();
+    bp.beginReadOnly(tid3);
+    p = (HeapPage) bp.getPage(tid3, p2, Permissions.READ_ONLY);
+    assertEquals(uncommitted, p.getNumEmptySlots());
+
+    // a page read while nobody writes it is a copy too: a writer arriving
+    // later does not change what the read-only transaction sees
+    TransactionId tid4 = new TransactionId();
+    HeapPage written = (HeapPage) bp.getPage(tid4, p2, Permissions.READ_WRITE);
+    assertNotSame(written, p);
+    written.insertTuple(Utility.getHeapTuple(new int[] { 7, 830 }));
+    written.markDirty(true, tid4);
+    assertEquals(uncommitted, p.getNumEmptySlots());
+    bp.transactionComplete(tid4, false);
+    bp.transactionComplete(tid3, true);
+  }
+
+  /**
+   * Unit test for the snapshot of a read-only transaction: a page it has read
+   * stays the same after a writer commits a change to it, and a page that a
+   * commit after the snapshot changed is refused instead of mixing versions.
+   */
+  @Test public void readOnlySnapshot() throws Exception {
+    bp.beginReadOnly(tid1);
+    HeapPage before = (HeapPage) bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    int empty1 = before.getNumEmptySlots();
+
+    // move a tuple from p1 to p2
+    HeapPage from = (HeapPage) bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    Tuple t = from.iterator().next();
+    from.deleteTuple(t);
+    from.markDirty(true, tid2);
+    HeapPage to = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    to.insertTuple(t);
+    to.markDirty(true, tid2);
+    bp.transactionComplete(tid2, true);
+
+    assertSame(before, bp.getPage(tid1, p1, Permissions.READ_ONLY));
+    assertEquals(empty1, before.getNumEmptySlots());
+    try {
+      bp.getPage(tid1, p2, Permissions.READ_ONLY);
+      fail("expected a page committed after the snapshot to abort the reader");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1, false);
+
+    TransactionId tid3 = new TransactionId();
+    bp.beginReadOnly(tid3);
+    HeapPage after = (HeapPage) bp.getPage(tid3, p1, Permissions.READ_ONLY);
+    assertEquals(empty1 + 1, after.getNumEmptySlots());
+    bp.getPage(tid3, p2, Permissions.READ_ONLY);
+    bp.transactionComplete(tid3, true);
+  }
+
   /**
    * JUnit suite target
    */
@@ -74,6 +74,31 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		} 
 	}
 
+	@Test public void addIncreasingTuples() throws Exception {
+		// create an empty B+ tree file keyed on the first field of a 2-field tuple
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		empty.setSplitFillFactor(1.0);
+
+		// appending fills every leaf before starting the next one
+		for (int i = 0; i < 4 * 502; ++i)
+			empty.insertTuple(tid, BTreeUtility.getBTreeTuple(i, 2));
+		assertEquals(5, empty.numPages());
+		empty.insertTuple(tid, BTreeUtility.getBTreeTuple(4 * 502, 2));
+		assertEquals(6, empty.numPages());
+		BTreeChecker.checkRep(empty, tid, new HashMap<PageId, Page>(), false);
+
+		DbFileIterator it = empty.iterator(tid);
+		it.open();
+		int expected = 0;
+		while(it.hasNext()) {
+			assertEquals(expected++, ((IntField) it.next().getField(0)).getValue());
+		} 
+		assertEquals(4 * 502 + 1, expected);
+	}
+
 	@Test public void addDuplicateTuples() throws Exception {
 		// create an empty B+ tree file keyed on the second field of a 2-field tuple
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -247,11 +247,11 @@ public class BTreeReverseScanTest extends SimpleDbTestBase {
         table.readCount = 0;
         scan = new BTreeReverseScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
-        // root pointer page + root + leaf pages
+        // only leaf pages: the root pointer and the root were cached by the first scan
         int leafPageCount = tuplesFiltered.size()/502;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
-        assertEquals(leafPageCount + 2, table.readCount);
+        assertEquals(leafPageCount, table.readCount);
         
         // GREATER_THAN
         tuplesFiltered.clear();
@@ -268,11 +268,11 @@ public class BTreeReverseScanTest extends SimpleDbTestBase {
         table.readCount = 0;
         scan = new BTreeReverseScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
-        // root pointer page + root + leaf pages
+        // only leaf pages
         leafPageCount = tuplesFiltered.size()/502;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
-        assertEquals(leafPageCount + 2, table.readCount);
+        assertEquals(leafPageCount, table.readCount);
         
         Database.getBufferPool().transactionComplete(tid);
     }
@@ -252,11 +252,11 @@ public class BTreeScanTest extends SimpleDbTestBase {
         table.readCount = 0;
         scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
-        // root pointer page + root + leaf pages
+        // only leaf pages: the root pointer and the root were cached by the first scan
         int leafPageCount = tuplesFiltered.size()/502;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
-        assertEquals(leafPageCount + 2, table.readCount);
+        assertEquals(leafPageCount, table.readCount);
         
         // GREATER_THAN
         tuplesFiltered.clear();
@@ -273,15 +273,97 @@ public class BTreeScanTest extends SimpleDbTestBase {
         table.readCount = 0;
         scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
-        // root pointer page + root + leaf pages
+        // only leaf pages
         leafPageCount = tuplesFiltered.size()/502;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
-        assertEquals(leafPageCount + 2, table.readCount);
+        assertEquals(leafPageCount, table.readCount);
         
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test that a range with both bounds only reads the leaves of the range, in both directions */
+    @Test public void testReadPageRange() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        Collections.sort(tuples, new TupleComparator(keyField));
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        Op[][] bounds = new Op[][] {
+            { Op.GREATER_THAN_OR_EQ, Op.LESS_THAN },
+            { Op.GREATER_THAN, Op.LESS_THAN_OR_EQ } };
+        for (Op[] ops : bounds) {
+            int lower = r.nextInt(LEAF_PAGES*502/2);
+            int upper = lower + 3*502;
+            IndexPredicate ipred = new IndexPredicate(ops[0], new IntField(lower), ops[1], new IntField(upper));
+            ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> tup : tuples) {
+                if (new IntField(tup.get(keyField)).compare(ops[0], new IntField(lower))
+                        && new IntField(tup.get(keyField)).compare(ops[1], new IntField(upper)))
+                    tuplesFiltered.add(tup);
+            }
+
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            table.readCount = 0;
+            BTreeScan scan = new BTreeScan(tid, table.getId(), "table", ipred);
+            SystemTestUtil.matchTuples(scan, tuplesFiltered);
+            // the root pointer, the root, the leaves of the range and one more leaf to find its end
+            assertTrue(table.readCount <= tuplesFiltered.size()/502 + 4);
+
+            DbFileIterator it = table.indexReverseIterator(tid, ipred);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertTrue(ipred.matches(t.getField(keyField)));
+                count++;
+            }
+            it.close();
+            assertEquals(tuplesFiltered.size(), count);
+        }
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner merges conjunctive bounds on the key of a B+ tree table into one range */
+    @Test public void testPlannerMergesBounds() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File file = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0).getFile();
+        // reopen the file with named fields
+        BTreeFile f = BTreeUtility.openBTreeFile(2, "c", file, 0);
+        String name = Database.getCatalog().getTableName(f.getId());
+        ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(0) >= 1000 && tup.get(0) < 20000 && tup.get(1) > 5000)
+                tuplesFiltered.add(tup);
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addFilter("t.c0", Op.GREATER_THAN_OR_EQ, "1000");
+        lp.addFilter("t.c1", Op.GREATER_THAN, "5000");
+        lp.addFilter("t.c0", Op.LESS_THAN, "20000");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        java.util.HashMap<String, TableStats> stats = new java.util.HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        OpIterator scan = plan;
+        while (scan instanceof Operator)
+            scan = ((Operator) scan).getChildren()[0];
+        assertTrue(scan instanceof BTreeScan);
+        SystemTestUtil.matchTuples(plan, tuplesFiltered);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
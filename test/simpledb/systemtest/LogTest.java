@@ -17,6 +17,8 @@ public class LogTest extends SimpleDbTestBase {
     File file2;
     HeapFile hf1;
     HeapFile hf2;
+    File bfile;
+    BTreeFile bf;
 
     void insertRow(HeapFile hf, Transaction t, int v1, int v2)
         throws DbException, TransactionAbortedException {
@@ -107,6 +109,8 @@ public class LogTest extends SimpleDbTestBase {
         Database.reset();
         hf1 = Utility.openHeapFile(2, file1);
         hf2 = Utility.openHeapFile(2, file2);
+        if(bfile != null)
+            bf = BTreeUtility.openBTreeFile(2, bfile, 0);
         Database.getLogFile().recover();
     }
 
@@ -124,6 +128,46 @@ public class LogTest extends SimpleDbTestBase {
         file2.delete();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        bfile = null;
+        bf = null;
+    }
+
+    // create an empty B+ tree with 2 columns keyed on the first one
+    void setupBTree() throws IOException {
+        bfile = new File("simplebtree.db");
+        bfile.delete();
+        bf = BTreeUtility.createEmptyBTreeFile(bfile.getAbsolutePath(), 2, 0);
+    }
+
+    // insert the keys [from, to) into the B+ tree
+    void insertKeys(Transaction t, int from, int to)
+        throws DbException, TransactionAbortedException, IOException {
+        for(int i = from; i < to; i++)
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                                                 BTreeUtility.getBTreeTuple(new int[]{i, 0}));
+    }
+
+    // check that every key in [from, to) is, or is not, in the B+ tree
+    void lookKeys(Transaction t, int from, int to, boolean present)
+        throws DbException, TransactionAbortedException, IOException {
+        for(int i = from; i < to; i++) {
+            int count = 0;
+            DbFileIterator it = bf.indexIterator(t.getId(),
+                    new IndexPredicate(Predicate.Op.EQUALS, new IntField(i)));
+            it.open();
+            while(it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            if(count > 1)
+                throw new RuntimeException("LogTest: key " + i + " repeated");
+            if(present && count < 1)
+                throw new RuntimeException("LogTest: key " + i + " missing");
+            if(present == false && count > 0)
+                throw new RuntimeException("LogTest: key " + i + " present but shouldn't be");
+        }
+        BTreeChecker.checkRep(bf, t.getId(), new HashMap<PageId, Page>(), false);
     }
 
     @Test public void PatchTest()
@@ -152,6 +196,24 @@ public class LogTest extends SimpleDbTestBase {
             throw new RuntimeException("LogTest:setBeforeImage() not called? patch failed?");
     }
 
+    @Test public void TestRecordCount()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        assertEquals(4, Database.getLogFile().getTotalRecords());
+
+        // *** Test:
+        // rolling back and truncating the log append no records of their
+        // own, so an abort and a checkpoint count one record each
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        t.abort();
+        assertEquals(6, Database.getLogFile().getTotalRecords());
+        Database.getLogFile().logCheckpoint();
+        assertEquals(7, Database.getLogFile().getTotalRecords());
+    }
+
     @Test public void TestFlushAll()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -427,6 +489,276 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // many transactions commit concurrently while the log leader
+        // delays its force; every commit returns and is logged once
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(2000);
+        final int threads = 16;
+        final int before = log.getTotalRecords();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread committer : committers)
+            committer.join(10000);
+        log.setGroupCommitDelay(0);
+
+        assertTrue(errors.isEmpty());
+        assertEquals(before + 2 * threads, log.getTotalRecords());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestBufferedLogCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // records still sitting in the in-memory log buffer, including a
+        // page-sized update record of an open transaction, are written out
+        // in order: the checkpoint's truncation has to parse all of them
+        Transaction t1 = new Transaction();
+        t1.start();
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        Database.getLogFile().logWrite(t1.getId(), p.getBeforeImage(), p);
+        doInsert(hf2, 3, 4);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logTruncate();
+        t1.commit();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1's update is logged but its page is not written before a
+        // checkpoint; T1 then commits and the system crashes. Recovery has
+        // to redo from the checkpoint's dirty page table, before the
+        // checkpoint record itself
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        Database.getLogFile().logWrite(t1.getId(), p.getBeforeImage(), p);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCommit(t1.getId());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestAsyncCommit()
+            throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // an asynchronous commit returns before its commit record is
+        // forced; the background writer makes it durable within the window
+        Database.getLogFile().setAsyncCommitWindow(50);
+        Transaction t1 = new Transaction();
+        t1.setAsyncCommit(true);
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+        t1.whenDurable().get(10, java.util.concurrent.TimeUnit.SECONDS);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+        t2.abort();
+        assertTrue(t2.whenDurable().isCompletedExceptionally());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+        assertTrue(t.whenDurable().isDone());
+    }
+
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // under NO-FORCE a commit leaves its pages dirty in the buffer
+        // pool; recovery redoes them from the log
+        Database.getBufferPool().setNoForce(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        insertRow(hf2, t1, 4, 0);
+        t1.commit();
+
+        // an abort on the same page must not lose t1's update, which is
+        // not on disk yet
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 5, 0);
+        t2.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf1, t, 5, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf2, t, 4, true);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestRepeatedRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a loser's updates are on disk at the crash; recovery undoes them
+        // and logs CLRs, so recovering again from the same log (as after a
+        // crash during recovery) must not undo them a second time
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        insertRow(hf2, t1, 4, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 4, false);
+        insertRow(hf1, t, 5, 0);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceBTreeCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        setupBTree();
+
+        // *** Test:
+        // under NO-FORCE the leaf, internal and root pointer pages a B+ tree
+        // insert splits stay dirty in the buffer pool after commit; recovery
+        // redoes them from the log
+        Database.getBufferPool().setNoForce(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertKeys(t1, 0, 2000);
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        lookKeys(t, 0, 2000, true);
+        t.commit();
+    }
+
+    @Test public void TestStealBTreeAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        setupBTree();
+        Transaction t0 = new Transaction();
+        t0.start();
+        insertKeys(t0, 0, 500);
+        t0.commit();
+
+        // *** Test:
+        // with a pool far smaller than the pages the inserts split, STEAL
+        // evicts uncommitted B+ tree pages; the abort undoes them on disk
+        Database.resetBufferPool(4).setSteal(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertKeys(t1, 1000, 3000);
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        lookKeys(t, 0, 500, true);
+        lookKeys(t, 1000, 3000, false);
+        t.commit();
+
+        // *** Test:
+        // a loser's stolen B+ tree pages are on disk at the crash; recovery
+        // undoes them
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertKeys(t2, 1000, 3000);
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        lookKeys(t, 0, 500, true);
+        lookKeys(t, 1000, 3000, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
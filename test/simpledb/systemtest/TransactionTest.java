@@ -246,6 +246,30 @@ public class TransactionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void testAllDirtySteal()
+            throws IOException, DbException, TransactionAbortedException {
+        // Allocate a file with ~10 pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1).setSteal(true);
+
+        // BEGIN TRANSACTION
+        Transaction t = new Transaction();
+        t.start();
+
+        // Insert a new row
+        EvictionTest.insertRow(f, t);
+
+        // Under STEAL the scan evicts the dirty page and still sees the row
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.abort();
+
+        // The abort undid the stolen page on disk
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(TransactionTest.class);